@@ -0,0 +1,131 @@
+// PART OF THE MACHINE SIMULATION. DO NOT CHANGE.
+
+package nachos.machine;
+
+import nachos.security.*;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.security.PrivilegedActionException;
+import java.security.PrivilegedExceptionAction;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.InflaterInputStream;
+
+/**
+ * Saves and restores the state of the simulated machine: the statistics, the
+ * random number generator, the times of pending interrupts, and the
+ * registers, memory and address translations of the processor.
+ *
+ * <p>
+ * Kernel state that lives in Java objects and threads, such as the thread
+ * queues and open files, is not saved. A checkpoint can therefore only be
+ * restored into a kernel that has reached the same state by itself, for
+ * example by loading the same program. The processor does this when
+ * <tt>Processor.restoreFile</tt> is set: the first time it runs, it restores
+ * the checkpoint over the program that was just loaded, and continues from
+ * the saved PC.
+ *
+ * <p>
+ * Checkpoints are compressed, and only contain pages of memory that are not
+ * all zero.
+ */
+public final class Checkpoint {
+    /**
+     * Prevent instantiation.
+     */
+    private Checkpoint() {
+    }
+
+    /**
+     * Save the state of the machine to the specified file.
+     *
+     * @param	privilege	encapsulates privileged access to the Nachos
+     *				machine.
+     * @param	fileName	the file to write.
+     */
+    public static void save(Privilege privilege, final String fileName) {
+	final Stats stats = privilege.stats;
+
+	run(privilege, fileName, new PrivilegedExceptionAction<Object>() {
+		public Object run() throws IOException {
+		    DataOutputStream out = new DataOutputStream(
+			new DeflaterOutputStream(Channels.newOutputStream(
+			    FileChannel.open(Paths.get(fileName),
+					     StandardOpenOption.CREATE,
+					     StandardOpenOption.WRITE,
+					     StandardOpenOption.TRUNCATE_EXISTING))));
+		    try {
+			out.writeInt(magic);
+			stats.save(out);
+			out.writeLong(Lib.getRandomState());
+			Machine.interrupt().save(out);
+
+			Machine.processor().saveMemory(out);
+			Machine.processor().save(out);
+		    }
+		    finally {
+			out.close();
+		    }
+		    return null;
+		}
+	    });
+
+	System.out.println("checkpoint saved to " + fileName + " at time "
+			   + stats.totalTicks);
+    }
+
+    /**
+     * Restore the state of the machine from the specified file.
+     *
+     * @param	privilege	encapsulates privileged access to the Nachos
+     *				machine.
+     * @param	fileName	the file to read.
+     */
+    public static void restore(Privilege privilege, final String fileName) {
+	final Stats stats = privilege.stats;
+
+	run(privilege, fileName, new PrivilegedExceptionAction<Object>() {
+		public Object run() throws IOException {
+		    DataInputStream in = new DataInputStream(
+			new InflaterInputStream(Channels.newInputStream(
+			    FileChannel.open(Paths.get(fileName),
+					     StandardOpenOption.READ))));
+		    try {
+			Lib.assertTrue(in.readInt() == magic,
+				       "not a checkpoint: " + fileName);
+			stats.restore(in);
+			Lib.setRandomState(in.readLong());
+			Machine.interrupt().restore(in);
+
+			Machine.processor().restoreMemory(in);
+			Machine.processor().restore(in);
+		    }
+		    finally {
+			in.close();
+		    }
+		    return null;
+		}
+	    });
+
+	System.out.println("checkpoint restored from " + fileName
+			   + " at time " + stats.totalTicks);
+    }
+
+    private static void run(Privilege privilege, String fileName,
+			    PrivilegedExceptionAction<Object> action) {
+	try {
+	    privilege.doPrivileged(action);
+	}
+	catch (PrivilegedActionException e) {
+	    Lib.assertNotReached("checkpoint " + fileName + " failed: "
+				 + e.getException());
+	}
+    }
+
+    private static final int magic = 0x4E434B31;	// "NCK1"
+}
@@ -213,8 +213,15 @@ public final class ElevatorBank implements Runnable {
 
 	    if (!elevators[elevator].moveTo(floor))
 		return false;
-	    
-	    schedule(Stats.ElevatorTicks);
+
+	    // an elevator that was already moving has its arrival scheduled
+	    ElevatorState state = elevators[elevator];
+	    if (state.arrival == null)
+		state.arrival = privilege.interrupt.schedule(Stats.ElevatorTicks,
+							     "elevator",
+							     interrupt);
+	    else if (!state.arrival.isPending())
+		state.arrival.reschedule(Stats.ElevatorTicks);
 	    return true;
 	}
 	
@@ -282,10 +289,10 @@ public final class ElevatorBank implements Runnable {
 				  elevators[i].destination, i, false);
 		    }
 		    else {
+			// may still be pending, if another elevator's
+			// arrival got here first at the same time
 			elevators[i].nextETA += Stats.ElevatorTicks;
-			privilege.interrupt.schedule(Stats.ElevatorTicks,
-						   "elevator",
-						   interrupt);
+			elevators[i].arrival.reschedule(Stats.ElevatorTicks);
 		    }
 		}
 	    }
@@ -417,6 +424,8 @@ public final class ElevatorBank implements Runnable {
 
 	int floor, destination;
 	long nextETA;
+	/** The interrupt for reaching the next floor, while moving. */
+	Interrupt.PendingInterrupt arrival = null;
 	
 	boolean doorsOpen = false, moving = false;
 	int direction = dirNeither;
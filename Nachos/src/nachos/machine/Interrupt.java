@@ -4,9 +4,10 @@ package nachos.machine;
 
 import nachos.security.*;
 
-import java.util.TreeSet;
-import java.util.Iterator;
-import java.util.SortedSet;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
 
 /**
  * The <tt>Interrupt</tt> class emulates low-level interrupt hardware. The
@@ -53,7 +54,6 @@ public final class Interrupt {
 	privilege.interrupt = new InterruptPrivilege();
 	
 	enabled = false;
-	pending = new TreeSet<PendingInterrupt>();
     }
 
     /**
@@ -120,17 +120,44 @@ public final class Interrupt {
 	return !enabled;
     }
 
-    private void schedule(long when, String type, Runnable handler) {
-	Lib.assertTrue(when>0);
-	
-	long time = privilege.stats.totalTicks + when;
-	PendingInterrupt toOccur = new PendingInterrupt(time, type, handler);
+    /**
+     * Advance simulated time to just before the next pending interrupt. A
+     * kernel calls this when it is about to run its idle thread because no
+     * other thread is ready, so that the idle thread does not have to yield
+     * once per kernel tick until an interrupt makes one ready. Interrupts
+     * must be disabled.
+     *
+     * <p>
+     * Time advances by a whole number of kernel ticks and stops one tick
+     * short of the interrupt, so the interrupt still occurs at the same time
+     * when interrupts are next enabled. The skipped time is counted as kernel
+     * time, like the yields it replaces, and also in
+     * <tt>Stats.idleTicks</tt>.
+     */
+    public void idle() {
+	Lib.assertTrue(disabled());
+
+	// when debugging, every tick must be printed
+	if (numPending == 0 || Lib.test(dbgInt))
+	    return;
+
+	Stats stats = privilege.stats;
+	long skipped = (heapTime[0] - stats.totalTicks - 1)
+	    / Stats.KernelTick * Stats.KernelTick;
+
+	if (skipped <= 0)
+	    return;
 
-	Lib.debug(dbgInt,
-		  "Scheduling the " + type +
-		  " interrupt handler at time = " + time);
+	stats.kernelTicks += skipped;
+	stats.totalTicks += skipped;
+	stats.idleTicks += skipped;
+    }
 
-	pending.add(toOccur);
+    private PendingInterrupt schedule(long when, String type,
+				      Runnable handler) {
+	PendingInterrupt toOccur = new PendingInterrupt(type, handler);
+	toOccur.reschedule(when);
+	return toOccur;
     }
 
     private void tick(boolean inKernelMode) {
@@ -153,6 +180,25 @@ public final class Interrupt {
 	enabled = true;
     }
 
+    private long userTicksUntilDue() {
+	// when debugging, every tick must be printed
+	if (numPending == 0 || Lib.test(dbgInt))
+	    return (numPending == 0) ? Long.MAX_VALUE : 1;
+
+	long ticks = heapTime[0] - privilege.stats.totalTicks;
+
+	return Math.max(1, (ticks + Stats.UserTick - 1) / Stats.UserTick);
+    }
+
+    private void addUserTicks(long count) {
+	Stats stats = privilege.stats;
+
+	stats.userTicks += count * Stats.UserTick;
+	stats.totalTicks += count * Stats.UserTick;
+
+	Lib.assertTrue(numPending == 0 || heapTime[0] > stats.totalTicks);
+    }
+
     private void checkIfDue() {
 	long time = privilege.stats.totalTicks;
 
@@ -161,18 +207,14 @@ public final class Interrupt {
 	if (Lib.test(dbgInt))
 	    print();
 
-	if (pending.isEmpty())
-	    return;
-
-	if (((PendingInterrupt) pending.first()).time > time)
+	if (numPending == 0 || heapTime[0] > time)
 	    return;
 
 	Lib.debug(dbgInt, "Invoking interrupt handlers at time = " + time);
 	
-	while (!pending.isEmpty() &&
-	       ((PendingInterrupt) pending.first()).time <= time) {
-	    PendingInterrupt next = (PendingInterrupt) pending.first();
-	    pending.remove(next);
+	while (numPending > 0 && heapTime[0] <= time) {
+	    PendingInterrupt next = heap[0];
+	    remove(next);
 
 	    Lib.assertTrue(next.time <= time);
 
@@ -187,13 +229,63 @@ public final class Interrupt {
 	Lib.debug(dbgInt, "  (end of list)");
     }
 
+    /**
+     * Write the type and time of every pending interrupt to a checkpoint.
+     *
+     * @param	out	the checkpoint stream.
+     */
+    void save(DataOutputStream out) throws IOException {
+	out.writeInt(numPending);
+
+	for (PendingInterrupt toOccur : sortedPending()) {
+	    out.writeUTF(toOccur.type);
+	    out.writeLong(toOccur.time);
+	}
+    }
+
+    /**
+     * Restore the times of pending interrupts from a checkpoint written by
+     * <tt>save()</tt>. Handlers cannot be saved, so each saved interrupt is
+     * matched with a pending interrupt of the same type, which is moved to the
+     * saved time. Interrupts that cannot be matched are left alone.
+     *
+     * @param	in	the checkpoint stream.
+     */
+    void restore(DataInputStream in) throws IOException {
+	PendingInterrupt[] unmatched = sortedPending();
+	
+	int numSaved = in.readInt();
+	for (int i=0; i<numSaved; i++) {
+	    String type = in.readUTF();
+	    long time = in.readLong();
+
+	    int match = -1;
+	    for (int j=0; j<unmatched.length; j++) {
+		if (unmatched[j] != null && unmatched[j].type.equals(type)) {
+		    match = j;
+		    break;
+		}
+	    }
+
+	    if (match == -1) {
+		Lib.debug(dbgInt, "No pending " + type + " interrupt to restore");
+		continue;
+	    }
+
+	    PendingInterrupt toOccur = unmatched[match];
+	    unmatched[match] = null;
+	    remove(toOccur);
+	    toOccur.time = time;
+	    add(toOccur);
+	}
+    }
+
     private void print() {
 	System.out.println("Time: " + privilege.stats.totalTicks
 			   + ", interrupts " + (enabled ? "on" : "off"));
 	System.out.println("Pending interrupts:");
 
-	for (Iterator i=pending.iterator(); i.hasNext(); ) {
-	    PendingInterrupt toOccur = (PendingInterrupt) i.next();
+	for (PendingInterrupt toOccur : sortedPending()) {
 	    System.out.println("  " + toOccur.type +
 			       ", scheduled at " + toOccur.time);
 	}
@@ -201,12 +293,166 @@ public final class Interrupt {
 	System.out.println("  (end of list)");
     }
 
-    private class PendingInterrupt implements Comparable {
-	PendingInterrupt(long time, String type, Runnable handler) {
-	    this.time = time;
+    /**
+     * Add an interrupt to the pending heap.
+     */
+    private void add(PendingInterrupt toOccur) {
+	if (numPending == heap.length) {
+	    heap = Arrays.copyOf(heap, numPending*2);
+	    heapTime = Arrays.copyOf(heapTime, numPending*2);
+	    heapId = Arrays.copyOf(heapId, numPending*2);
+	}
+
+	place(toOccur, numPending++);
+	siftUp(toOccur.index);
+    }
+
+    /**
+     * Remove an interrupt from the pending heap.
+     */
+    private void remove(PendingInterrupt toOccur) {
+	int i = toOccur.index;
+	Lib.assertTrue(i >= 0 && i < numPending && heap[i] == toOccur);
+
+	toOccur.index = -1;
+	PendingInterrupt last = heap[--numPending];
+	heap[numPending] = null;
+
+	if (i < numPending) {
+	    place(last, i);
+	    siftDown(i);
+	    siftUp(last.index);
+	}
+    }
+
+    private void place(PendingInterrupt toOccur, int i) {
+	heap[i] = toOccur;
+	heapTime[i] = toOccur.time;
+	heapId[i] = toOccur.id;
+	toOccur.index = i;
+    }
+
+    /**
+     * Test whether heap slot <i>i</i> must occur before slot <i>j</i>.
+     * Interrupts due at the same time occur in the order they were
+     * scheduled.
+     */
+    private boolean before(int i, int j) {
+	return heapTime[i] < heapTime[j] ||
+	    (heapTime[i] == heapTime[j] && heapId[i] < heapId[j]);
+    }
+
+    private void siftUp(int i) {
+	while (i > 0) {
+	    int parent = (i-1)/2;
+	    if (!before(i, parent))
+		break;
+
+	    swap(i, parent);
+	    i = parent;
+	}
+    }
+
+    private void siftDown(int i) {
+	while (true) {
+	    int child = 2*i + 1;
+	    if (child >= numPending)
+		break;
+	    if (child+1 < numPending && before(child+1, child))
+		child++;
+	    if (!before(child, i))
+		break;
+
+	    swap(i, child);
+	    i = child;
+	}
+    }
+
+    private void swap(int i, int j) {
+	PendingInterrupt a = heap[i], b = heap[j];
+	place(b, i);
+	place(a, j);
+    }
+
+    /**
+     * Return the pending interrupts in the order they will occur.
+     */
+    private PendingInterrupt[] sortedPending() {
+	PendingInterrupt[] sorted = Arrays.copyOf(heap, numPending);
+	Arrays.sort(sorted);
+	return sorted;
+    }
+
+    /**
+     * An interrupt scheduled by a device. A device can keep the object
+     * returned when it scheduled the interrupt, in order to cancel the
+     * interrupt or move it to a different time, instead of letting a stale
+     * interrupt occur and ignoring it.
+     */
+    public final class PendingInterrupt implements Comparable {
+	PendingInterrupt(String type, Runnable handler) {
 	    this.type = type;
 	    this.handler = handler;
-	    this.id = numPendingInterruptsCreated++;
+	}
+
+	/**
+	 * Test whether this interrupt has yet to occur.
+	 *
+	 * @return	<tt>true</tt> if this interrupt is scheduled and has not
+	 *		occurred or been cancelled.
+	 */
+	public boolean isPending() {
+	    return (index != -1);
+	}
+
+	/**
+	 * Return the time at which this interrupt occurs, or last occurred.
+	 *
+	 * @return	the time at which this interrupt is scheduled.
+	 */
+	public long getTime() {
+	    return time;
+	}
+
+	/**
+	 * Prevent this interrupt from occurring. Does nothing if it is not
+	 * pending.
+	 *
+	 * @return	<tt>true</tt> if this interrupt was pending.
+	 */
+	public boolean cancel() {
+	    if (!isPending())
+		return false;
+
+	    Lib.debug(dbgInt, "Cancelling the " + type + " interrupt handler");
+
+	    remove(this);
+	    return true;
+	}
+
+	/**
+	 * Schedule this interrupt to occur at a different time, whether or not
+	 * it is still pending. It is ordered after interrupts that were
+	 * already scheduled for the same time, as if it had been scheduled
+	 * again.
+	 *
+	 * @param	when	the number of ticks until the interrupt should
+	 *			occur.
+	 */
+	public void reschedule(long when) {
+	    Lib.assertTrue(when>0);
+
+	    if (isPending())
+		remove(this);
+
+	    time = privilege.stats.totalTicks + when;
+	    id = numPendingInterruptsCreated++;
+
+	    Lib.debug(dbgInt,
+		      "Scheduling the " + type +
+		      " interrupt handler at time = " + time);
+
+	    add(this);
 	}
 
 	public int compareTo(Object o) {
@@ -230,6 +476,7 @@ public final class Interrupt {
 	Runnable handler;
 
 	private long id;
+	private int index = -1;
     }
     
     private long numPendingInterruptsCreated = 0;
@@ -237,17 +484,36 @@ public final class Interrupt {
     private Privilege privilege;
 
     private boolean enabled;
-    private TreeSet<PendingInterrupt> pending;
+
+    /**
+     * The pending interrupts, as a binary heap ordered by time and then by
+     * id. The keys are copied into primitive arrays, so comparisons do not
+     * have to follow pointers, and the next interrupt due is always
+     * <tt>heapTime[0]</tt>.
+     */
+    private PendingInterrupt[] heap = new PendingInterrupt[16];
+    private long[] heapTime = new long[16];
+    private long[] heapId = new long[16];
+    private int numPending = 0;
 
     private static final char dbgInt = 'i';
 
     private class InterruptPrivilege implements Privilege.InterruptPrivilege {
-	public void schedule(long when, String type, Runnable handler) {
-	    Interrupt.this.schedule(when, type, handler);
+	public PendingInterrupt schedule(long when, String type,
+					 Runnable handler) {
+	    return Interrupt.this.schedule(when, type, handler);
 	}
 
 	public void tick(boolean inKernelMode) {
 	    Interrupt.this.tick(inKernelMode);
 	}
+
+	public long userTicksUntilDue() {
+	    return Interrupt.this.userTicksUntilDue();
+	}
+
+	public void addUserTicks(long count) {
+	    Interrupt.this.addUserTicks(count);
+	}
     }
 }
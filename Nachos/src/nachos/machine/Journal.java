@@ -0,0 +1,271 @@
+// PART OF THE MACHINE SIMULATION. DO NOT CHANGE.
+
+package nachos.machine;
+
+import nachos.security.*;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.security.PrivilegedActionException;
+import java.security.PrivilegedExceptionAction;
+
+/**
+ * A journal of the inputs that come from outside the simulation: console
+ * input, network packets, and the network link address. When recording,
+ * devices log each input with the time it was seen. When replaying, devices
+ * take their inputs from the journal instead of from stdin or sockets, at the
+ * same simulated times, so a run can be reproduced exactly.
+ *
+ * <p>
+ * The journal also saves the state of the random number generator, which
+ * decides timer jitter and network packet drops.
+ *
+ * <p>
+ * Each entry is the number of ticks since the previous entry, a type byte,
+ * and a value, with numbers in a variable-length encoding.
+ */
+final class Journal {
+    /**
+     * Open the journal requested by <tt>Machine.recordFile</tt> or
+     * <tt>Machine.replayFile</tt>.
+     *
+     * @param	privilege      	encapsulates privileged access to the Nachos
+     *				machine.
+     * @return	the journal, or <tt>null</tt> if neither was requested.
+     */
+    static Journal open(Privilege privilege) {
+	String recordFile = Config.getString("Machine.recordFile", null);
+	String replayFile = Config.getString("Machine.replayFile", null);
+
+	Lib.assertTrue(recordFile == null || replayFile == null,
+		       "cannot record and replay at the same time");
+
+	if (recordFile != null)
+	    return new Journal(privilege, recordFile, false);
+	else if (replayFile != null)
+	    return new Journal(privilege, replayFile, true);
+	else
+	    return null;
+    }
+
+    private Journal(Privilege privilege, final String fileName,
+		    boolean replaying) {
+	this.privilege = privilege;
+	this.replaying = replaying;
+
+	try {
+	    if (replaying) {
+		in = (DataInputStream) privilege.doPrivileged(
+		    new PrivilegedExceptionAction<Object>() {
+			public Object run() throws IOException {
+			    return new DataInputStream(new BufferedInputStream(
+				new FileInputStream(fileName)));
+			}
+		    });
+
+		Lib.assertTrue(in.readInt() == magic,
+			       "not a journal: " + fileName);
+		Lib.setRandomState(in.readLong());
+		readEntry();
+	    }
+	    else {
+		out = (DataOutputStream) privilege.doPrivileged(
+		    new PrivilegedExceptionAction<Object>() {
+			public Object run() throws IOException {
+			    return new DataOutputStream(new BufferedOutputStream(
+				new FileOutputStream(fileName)));
+			}
+		    });
+
+		out.writeInt(magic);
+		out.writeLong(Lib.getRandomState());
+
+		privilege.addExitNotificationHandler(new Runnable() {
+			public void run() { close(); }
+		    });
+	    }
+	}
+	catch (PrivilegedActionException e) {
+	    Lib.assertNotReached("could not open journal " + fileName + ": "
+				 + e.getException());
+	}
+	catch (IOException e) {
+	    Lib.assertNotReached("could not open journal " + fileName + ": "
+				 + e);
+	}
+    }
+
+    /**
+     * Test whether inputs come from this journal.
+     *
+     * @return	<tt>true</tt> if replaying, <tt>false</tt> if recording.
+     */
+    boolean isReplaying() {
+	return replaying;
+    }
+
+    /**
+     * Record an integer input seen now.
+     *
+     * @param	type	the kind of input.
+     * @param	value	the input.
+     */
+    void record(int type, int value) {
+	try {
+	    writeHeader(type);
+	    writeNumber(value);
+	}
+	catch (IOException e) {
+	    Lib.assertNotReached("journal write failed: " + e);
+	}
+    }
+
+    /**
+     * Record a byte string input seen now.
+     *
+     * @param	type	the kind of input.
+     * @param	value	the input.
+     */
+    void record(int type, byte[] value) {
+	try {
+	    writeHeader(type);
+	    writeNumber(value.length);
+	    out.write(value);
+	}
+	catch (IOException e) {
+	    Lib.assertNotReached("journal write failed: " + e);
+	}
+    }
+
+    /**
+     * Return the integer input recorded now, if any.
+     *
+     * @param	type	the kind of input.
+     * @param	absent	the value to return if there is none.
+     * @return	the recorded input, or <tt>absent</tt>.
+     */
+    int replay(int type, int absent) {
+	if (!nextEntryIsNow(type))
+	    return absent;
+
+	int value = (int) nextValue;
+	readEntry();
+	return value;
+    }
+
+    /**
+     * Return the byte string input recorded now, if any.
+     *
+     * @param	type	the kind of input.
+     * @return	the recorded input, or <tt>null</tt>.
+     */
+    byte[] replay(int type) {
+	if (!nextEntryIsNow(type))
+	    return null;
+
+	byte[] value = nextBytes;
+	readEntry();
+	return value;
+    }
+
+    private boolean nextEntryIsNow(int type) {
+	long now = privilege.stats.totalTicks;
+
+	// inputs are only read when the simulation asks for them, so a
+	// faithful replay cannot skip past one
+	Lib.assertTrue(nextType == -1 || nextTime >= now,
+		       "replay diverged from the journal at time " + now);
+
+	return (nextType == type && nextTime == now);
+    }
+
+    private void writeHeader(int type) throws IOException {
+	long now = privilege.stats.totalTicks;
+
+	writeNumber(now - lastTime);
+	out.writeByte(type);
+	lastTime = now;
+    }
+
+    private void writeNumber(long value) throws IOException {
+	// 7 bits at a time, low bits first
+	while ((value & ~0x7FL) != 0) {
+	    out.writeByte((int) (value & 0x7F) | 0x80);
+	    value >>>= 7;
+	}
+	out.writeByte((int) value);
+    }
+
+    private long readNumber() throws IOException {
+	long value = 0;
+	for (int shift=0; ; shift+=7) {
+	    int b = in.readUnsignedByte();
+	    value |= (long) (b & 0x7F) << shift;
+	    if ((b & 0x80) == 0)
+		return value;
+	}
+    }
+
+    private void readEntry() {
+	try {
+	    long delta;
+	    try {
+		delta = readNumber();
+	    }
+	    catch (EOFException e) {
+		nextType = -1;
+		return;
+	    }
+
+	    nextTime = lastTime + delta;
+	    lastTime = nextTime;
+	    nextType = in.readUnsignedByte();
+
+	    if (nextType == networkPacket) {
+		nextBytes = new byte[(int) readNumber()];
+		in.readFully(nextBytes);
+	    }
+	    else {
+		nextValue = readNumber();
+	    }
+	}
+	catch (IOException e) {
+	    Lib.assertNotReached("journal read failed: " + e);
+	}
+    }
+
+    private void close() {
+	try {
+	    out.close();
+	}
+	catch (IOException e) {
+	}
+    }
+
+    /** A byte read from the console. */
+    static final int consoleInput = 1;
+    /** A packet received from the network. */
+    static final int networkPacket = 2;
+    /** The address of the network link. */
+    static final int networkAddress = 3;
+
+    private Privilege privilege;
+    private boolean replaying;
+
+    private DataOutputStream out = null;
+    private DataInputStream in = null;
+    private long lastTime = 0;
+
+    private int nextType = -1;
+    private long nextTime;
+    private long nextValue;
+    private byte[] nextBytes;
+
+    private static final int magic = 0x4E4A4E31;	// "NJN1"
+}
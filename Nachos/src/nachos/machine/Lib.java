@@ -32,7 +32,7 @@ public final class Lib {
     private Lib() {
     }
 
-    private static Random random = null;
+    private static SeededRandom random = null;
 
     /**
      * Seed the random number generater. May only be called once.
@@ -41,9 +41,56 @@ public final class Lib {
      */
     public static void seedRandom(long randomSeed) {
 	assertTrue(random == null);
-	random = new Random(randomSeed);
+	random = new SeededRandom(randomSeed);
     }
-    
+
+    /**
+     * Return the internal state of the random number generator, so that a
+     * checkpoint can save it.
+     *
+     * @return	the state of the random number generator.
+     */
+    static long getRandomState() {
+	return random.state;
+    }
+
+    /**
+     * Restore the internal state of the random number generator from a
+     * checkpoint.
+     *
+     * @param	state	a value returned by <tt>getRandomState()</tt>.
+     */
+    static void setRandomState(long state) {
+	assertTrue(random != null);
+	random.state = state;
+    }
+
+    /**
+     * The same linear congruential generator as <tt>java.util.Random</tt>,
+     * but with its state visible, so that it can be checkpointed without
+     * serialization.
+     */
+    private static class SeededRandom extends Random {
+	private static final long serialVersionUID = 1L;
+
+	SeededRandom(long seed) {
+	    // Random's constructor calls setSeed() before state is initialized
+	    super(seed);
+	    state = (seed ^ multiplier) & mask;
+	}
+
+	protected int next(int bits) {
+	    state = (state * multiplier + addend) & mask;
+	    return (int) (state >>> (48 - bits));
+	}
+
+	long state;
+
+	private static final long multiplier = 0x5DEECE66DL;
+	private static final long addend = 0xBL;
+	private static final long mask = (1L << 48) - 1;
+    }
+
     /**
      * Return a random integer between 0 and <i>range - 1</i>. Must not be
      * called before <tt>seedRandom()</tt> seeds the random number generator.
@@ -169,6 +169,9 @@ public final class Machine {
     }
 
     private static void createDevices() {
+	// before anything draws random numbers
+	journal = Journal.open(privilege);
+
 	interrupt = new Interrupt(privilege);
 	timer = new Timer(privilege);
 
@@ -353,6 +356,14 @@ public final class Machine {
      */
     public static AutoGrader autoGrader() { return autoGrader; }
 
+    /**
+     * Return the journal of external inputs.
+     *
+     * @return	the journal, or <tt>null</tt> if inputs are neither recorded
+     *		nor replayed.
+     */
+    static Journal journal() { return journal; }
+
     private static Interrupt interrupt = null;
     private static Timer timer = null;
     private static ElevatorBank bank = null;
@@ -361,6 +372,7 @@ public final class Machine {
     private static FileSystem stubFileSystem = null;
     private static NetworkLink networkLink = null;
     private static AutoGrader autoGrader = null;
+    private static Journal journal = null;
 
     private static String autoGraderClassName = "nachos.ag.AutoGrader";
 
@@ -89,23 +89,36 @@ public class NetworkLink {
 
 	socket = null;
 
-	for (linkAddress=0;linkAddress<Packet.linkAddressLimit;linkAddress++) {
-	    try {
-		socket = new DatagramSocket(portBase + linkAddress, localHost);
-		break;
-	    }
-	    catch (SocketException e) {
-	    }
+	journal = Machine.journal();
+	replaying = (journal != null && journal.isReplaying());
+
+	if (replaying) {
+	    linkAddress = (byte) journal.replay(Journal.networkAddress, 0);
 	}
+	else {
+	    for (linkAddress=0; linkAddress<Packet.linkAddressLimit;
+		 linkAddress++) {
+		try {
+		    socket = new DatagramSocket(portBase + linkAddress,
+						localHost);
+		    break;
+		}
+		catch (SocketException e) {
+		}
+	    }
 
-	if (socket == null) {
-	    System.out.println("");
-	    System.out.println("Unable to acquire a link address!");
-	    Lib.assertNotReached();
+	    if (socket == null) {
+		System.out.println("");
+		System.out.println("Unable to acquire a link address!");
+		Lib.assertNotReached();
+	    }
 	}
 
 	System.out.print("(" + linkAddress + ")");
 
+	if (journal != null && !replaying)
+	    journal.record(Journal.networkAddress, linkAddress);
+
 	receiveInterrupt = new Runnable() {
 		public void run() { receiveInterrupt(); }
 	    };
@@ -116,6 +129,10 @@ public class NetworkLink {
 	
 	scheduleReceiveInterrupt();
 
+	// when replaying, packets come from the journal instead of the socket
+	if (replaying)
+	    return;
+
 	Thread receiveThread = new Thread(new Runnable() {
 		public void run() { receiveLoop(); }
 	    });
@@ -163,6 +180,11 @@ public class NetworkLink {
     private synchronized void receiveInterrupt() {
 	Lib.assertTrue(incomingPacket == null);
 
+	if (replaying)
+	    incomingBytes = journal.replay(Journal.networkPacket);
+	else if (journal != null && incomingBytes != null)
+	    journal.record(Journal.networkPacket, incomingBytes);
+
 	if (incomingBytes != null) {
 	    if (Machine.autoGrader().canReceivePacket(privilege)) {
 		try {
@@ -266,6 +288,12 @@ public class NetworkLink {
     private void sendPacket() {
 	Packet p = outgoingPacket;
 	outgoingPacket = null;
+
+	// other machines were already sent this packet when it was recorded
+	if (replaying) {
+	    privilege.stats.numPacketsSent++;
+	    return;
+	}
 	
 	try {
 	    socket.send(new DatagramPacket(p.packetBytes, p.packetBytes.length,
@@ -318,6 +346,9 @@ public class NetworkLink {
     private InetAddress localHost;
     private DatagramSocket socket;
 
+    private Journal journal;
+    private boolean replaying;
+
     private byte linkAddress;
     private double reliability;
 
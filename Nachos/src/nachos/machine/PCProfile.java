@@ -0,0 +1,174 @@
+// PART OF THE MACHINE SIMULATION. DO NOT CHANGE.
+
+package nachos.machine;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * A flat profile of a user program, built from the PC samples taken by the
+ * processor (see <tt>Processor.getPCSampleInterval()</tt>). Samples are
+ * attributed to the program between calls to <tt>start()</tt> and
+ * <tt>collect()</tt>, which a kernel makes when a process gets and gives up
+ * the processor.
+ *
+ * <p>
+ * Addresses are reported relative to the COFF section containing them. The
+ * loader does not read a symbol table, so there are no function names.
+ */
+public class PCProfile {
+    /**
+     * Allocate a new profile for a program. The sections of <i>coff</i> are
+     * remembered, so the loader may be closed afterwards.
+     *
+     * @param	name	the name of the program.
+     * @param	coff	the loaded executable.
+     */
+    public PCProfile(String name, Coff coff) {
+	this.name = name;
+
+	int numSections = coff.getNumSections();
+	sectionNames = new String[numSections];
+	sectionStarts = new int[numSections];
+	sectionEnds = new int[numSections];
+
+	for (int s=0; s<numSections; s++) {
+	    CoffSection section = coff.getSection(s);
+	    sectionNames[s] = section.getName();
+	    sectionStarts[s] = section.getFirstVPN() * Processor.pageSize;
+	    sectionEnds[s] = sectionStarts[s] +
+		section.getLength() * Processor.pageSize;
+	}
+    }
+
+    /**
+     * Start attributing samples taken by the specified processor to this
+     * program.
+     *
+     * @param	processor	the processor about to run the program.
+     */
+    public void start(Processor processor) {
+	nextSample = processor.getNumPCSamples();
+    }
+
+    /**
+     * Add the samples taken by the specified processor since the last call to
+     * <tt>start()</tt> or <tt>collect()</tt> to this profile. Samples that
+     * have already left the processor's buffer are counted as dropped.
+     *
+     * @param	processor	the processor that was running the program.
+     */
+    public void collect(Processor processor) {
+	long numSamples = processor.getNumPCSamples();
+	long oldest = numSamples - Processor.pcSampleBufferSize;
+
+	if (nextSample < oldest) {
+	    numDropped += oldest - nextSample;
+	    nextSample = oldest;
+	}
+
+	for (; nextSample < numSamples; nextSample++) {
+	    int pc = processor.getPCSample(nextSample);
+	    Integer count = counts.get(pc);
+
+	    counts.put(pc, (count == null) ? 1 : count+1);
+	    numCollected++;
+	}
+    }
+
+    /**
+     * Print this profile: the samples in each section, followed by the most
+     * frequently sampled addresses.
+     */
+    public void print() {
+	System.out.println("Profile of " + name + ": " + numCollected
+			   + " samples, " + numDropped + " dropped");
+	if (numCollected == 0)
+	    return;
+
+	int[] sectionCounts = new int[sectionNames.length];
+	int otherCount = 0;
+
+	ArrayList<Map.Entry<Integer,Integer>> entries =
+	    new ArrayList<Map.Entry<Integer,Integer>>(counts.entrySet());
+
+	for (Map.Entry<Integer,Integer> entry : entries) {
+	    int s = findSection(entry.getKey());
+	    if (s == -1)
+		otherCount += entry.getValue();
+	    else
+		sectionCounts[s] += entry.getValue();
+	}
+
+	for (int s=0; s<sectionNames.length; s++) {
+	    if (sectionCounts[s] > 0)
+		printLine(sectionCounts[s], sectionNames[s]);
+	}
+	if (otherCount > 0)
+	    printLine(otherCount, "(outside sections)");
+
+	// most samples first, then by address
+	Collections.sort(entries,
+			 new Comparator<Map.Entry<Integer,Integer>>() {
+		public int compare(Map.Entry<Integer,Integer> a,
+				   Map.Entry<Integer,Integer> b) {
+		    int diff = b.getValue() - a.getValue();
+		    if (diff != 0)
+			return diff;
+		    return a.getKey().compareTo(b.getKey());
+		}
+	    });
+
+	for (int i=0; i<entries.size() && i<maxAddressesPrinted; i++) {
+	    Map.Entry<Integer,Integer> entry = entries.get(i);
+	    printLine(entry.getValue(), symbolize(entry.getKey()));
+	}
+    }
+
+    private void printLine(int count, String location) {
+	long tenths = count * 1000L / numCollected;
+
+	System.out.println(pad("" + count, 10)
+			   + pad((tenths/10) + "." + (tenths%10), 7) + "%  "
+			   + location);
+    }
+
+    private static String pad(String s, int width) {
+	while (s.length() < width)
+	    s = " " + s;
+	return s;
+    }
+
+    private int findSection(int vaddr) {
+	for (int s=0; s<sectionNames.length; s++) {
+	    if (vaddr >= sectionStarts[s] && vaddr < sectionEnds[s])
+		return s;
+	}
+
+	return -1;
+    }
+
+    private String symbolize(int vaddr) {
+	String location = "0x" + Lib.toHexString(vaddr);
+
+	int s = findSection(vaddr);
+	if (s != -1)
+	    location += "  " + sectionNames[s] + "+0x" +
+		Integer.toHexString(vaddr - sectionStarts[s]);
+
+	return location;
+    }
+
+    private String name;
+    private String[] sectionNames;
+    private int[] sectionStarts, sectionEnds;
+
+    private HashMap<Integer,Integer> counts = new HashMap<Integer,Integer>();
+    private long nextSample = 0;
+    private long numCollected = 0, numDropped = 0;
+
+    private static final int maxAddressesPrinted = 20;
+}
@@ -4,6 +4,16 @@ package nachos.machine;
 
 import nachos.security.*;
 
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.security.PrivilegedActionException;
+import java.security.PrivilegedExceptionAction;
+
 /**
  * The <tt>Processor</tt> class simulates a MIPS processor that supports a
  * subset of the R3000 instruction set. Specifically, the processor lacks all
@@ -45,9 +55,54 @@ public final class Processor {
 	for (int i=0; i<numUserRegisters; i++)
 	    registers[i] = 0;
 
-	mainMemory = new byte[pageSize * numPhysPages];
+	allocateMemory(pageSize * numPhysPages);
+	decodeCache = new DecodedInstruction[(pageSize/4) * numPhysPages];
+
+	exceptions = new MipsException[exceptionNames.length];
+	for (int i=0; i<exceptionNames.length; i++)
+	    exceptions[i] = new MipsException(i);
+
+	tracing = Lib.test(dbgProcessor) || Lib.test(dbgDisassemble) ||
+	    Lib.test(dbgFullDisassemble);
+
+	// tracing needs every fetch to go through the interpreter
+	usingBlocks = Config.getBoolean("Processor.basicBlocks", false) &&
+	    !tracing;
+	batchingTicks = Config.getBoolean("Processor.batchTicks", false);
+
+	counting = Config.getBoolean("Processor.countInstructions", false);
+	if (counting) {
+	    privilege.stats.numInstructions =
+		new long[Stats.instructionClassNames.length];
+	    privilege.stats.numPageAccesses = new long[numPhysPages];
+	}
+
+	sampleInterval = Config.getInteger("Processor.profileInterval", 0);
+	Lib.assertTrue(sampleInterval >= 0, "bad profile interval");
+	if (sampleInterval > 0) {
+	    samples = new int[pcSampleBufferSize];
+	    sampleLeft = sampleInterval;
+	}
+	scheduleCheckpoint();
+
+	if (usingBlocks)
+	    blockCache = new BasicBlock[(pageSize/4) * numPhysPages];
 
 	if (usingTLB) {
+	    tlbSize = Config.getInteger("Processor.tlbSize", tlbSize);
+	    tlbWays = Config.getInteger("Processor.tlbAssociativity", tlbSize);
+	    Lib.assertTrue(tlbSize > 0 && tlbWays > 0 && tlbSize%tlbWays == 0,
+			   "bad TLB size or associativity");
+
+	    // an instruction and its data may need the same one-entry set
+	    splitTLB = (tlbWays == 1);
+	    Lib.assertTrue(!splitTLB || tlbSize%2 == 0,
+			   "a direct-mapped TLB is split between instructions "
+			   + "and data, so it needs an even number of entries");
+	    tlbSets = splitTLB ? tlbSize/2 : tlbSize/tlbWays;
+
+	    privilege.stats.numTLBSetMisses = new int[tlbSize / tlbWays];
+
 	    translations = new TranslationEntry[tlbSize];
 	    for (int i=0; i<tlbSize; i++)
 		translations[i] = new TranslationEntry();
@@ -57,6 +112,186 @@ public final class Processor {
 	}
     }
 
+    /**
+     * Allocate physical memory. By default it is a <tt>byte</tt> array on the
+     * Java heap. If <tt>Processor.memoryFile</tt> names a file, memory is
+     * mapped from that file, so its contents persist across runs. Otherwise,
+     * if <tt>Processor.directMemory</tt> is <tt>true</tt>, memory is
+     * allocated outside the heap.
+     *
+     * @param	size	the size of physical memory, in bytes.
+     */
+    private void allocateMemory(final int size) {
+	final String fileName = Config.getString("Processor.memoryFile", null);
+
+	if (fileName != null) {
+	    try {
+		memory = (ByteBuffer) privilege.doPrivileged(
+		    new PrivilegedExceptionAction<Object>() {
+			public Object run() throws IOException {
+			    RandomAccessFile file =
+				new RandomAccessFile(fileName, "rw");
+			    try {
+				return file.getChannel().map(
+				    FileChannel.MapMode.READ_WRITE, 0, size);
+			    }
+			    finally {
+				file.close();
+			    }
+			}
+		    });
+	    }
+	    catch (PrivilegedActionException e) {
+		Lib.assertNotReached("could not map " + fileName + ": " +
+				     e.getException());
+	    }
+	}
+	else if (Config.getBoolean("Processor.directMemory", false)) {
+	    memory = ByteBuffer.allocateDirect(size);
+	}
+	else {
+	    mainMemory = new byte[size];
+	    memory = ByteBuffer.wrap(mainMemory);
+	}
+
+	// MIPS memory is little-endian
+	memory.order(ByteOrder.LITTLE_ENDIAN);
+    }
+
+    /**
+     * Schedule the checkpoint requested by <tt>Processor.checkpointFile</tt>
+     * and <tt>Processor.checkpointAt</tt>, and remember the checkpoint to
+     * resume from given by <tt>Processor.restoreFile</tt>.
+     */
+    private void scheduleCheckpoint() {
+	final String fileName =
+	    Config.getString("Processor.checkpointFile", null);
+	if (fileName != null) {
+	    int when = Config.getInteger("Processor.checkpointAt");
+	    Lib.assertTrue(when > 0, "bad checkpoint time");
+
+	    privilege.interrupt.schedule(when, "checkpoint", new Runnable() {
+		    public void run() {
+			Checkpoint.save(privilege, fileName);
+		    }
+		});
+	}
+
+	restoreFile = Config.getString("Processor.restoreFile", null);
+    }
+
+    /**
+     * Write physical memory to a checkpoint. Only pages that are not all zero
+     * are written.
+     *
+     * @param	out	the checkpoint stream.
+     */
+    void saveMemory(DataOutputStream out) throws IOException {
+	byte[] page = new byte[pageSize];
+
+	out.writeInt(numPhysPages);
+	for (int ppn=0; ppn<numPhysPages; ppn++) {
+	    readMemory(ppn*pageSize, page, 0, pageSize);
+
+	    boolean zero = true;
+	    for (int i=0; i<pageSize && zero; i++)
+		zero = (page[i] == 0);
+	    if (zero)
+		continue;
+
+	    out.writeInt(ppn);
+	    out.write(page);
+	}
+	out.writeInt(-1);
+    }
+
+    /**
+     * Read physical memory from a checkpoint written by
+     * <tt>saveMemory()</tt>.
+     *
+     * @param	in	the checkpoint stream.
+     */
+    void restoreMemory(DataInputStream in) throws IOException {
+	Lib.assertTrue(in.readInt() == numPhysPages,
+		       "checkpoint has a different amount of memory");
+
+	byte[] page = new byte[pageSize];
+	for (int ppn=0; ppn<numPhysPages; ppn++)
+	    writeMemory(ppn*pageSize, page, 0, pageSize);
+
+	for (int ppn=in.readInt(); ppn != -1; ppn=in.readInt()) {
+	    in.readFully(page);
+	    writeMemory(ppn*pageSize, page, 0, pageSize);
+	}
+    }
+
+    /**
+     * Write this processor's registers and address translations to a
+     * checkpoint.
+     *
+     * @param	out	the checkpoint stream.
+     */
+    void save(DataOutputStream out) throws IOException {
+	for (int i=0; i<numUserRegisters; i++)
+	    out.writeInt(registers[i]);
+	out.writeInt(loadTarget);
+	out.writeInt(loadMask);
+	out.writeInt(loadValue);
+
+	out.writeInt(translations == null ? -1 : translations.length);
+	for (int i=0; translations != null && i<translations.length; i++) {
+	    TranslationEntry entry = translations[i];
+	    out.writeBoolean(entry != null);
+	    if (entry == null)
+		continue;
+
+	    out.writeInt(entry.vpn);
+	    out.writeInt(entry.ppn);
+	    out.writeBoolean(entry.valid);
+	    out.writeBoolean(entry.readOnly);
+	    out.writeBoolean(entry.used);
+	    out.writeBoolean(entry.dirty);
+	}
+    }
+
+    /**
+     * Read this processor's state from a checkpoint written by
+     * <tt>save()</tt>. The translations are copied into the entries of the
+     * current TLB or page table, so the kernel's page table sees them, and
+     * must have the same size.
+     *
+     * @param	in	the checkpoint stream.
+     */
+    void restore(DataInputStream in) throws IOException {
+	for (int i=0; i<numUserRegisters; i++)
+	    registers[i] = in.readInt();
+	loadTarget = in.readInt();
+	loadMask = in.readInt();
+	loadValue = in.readInt();
+
+	int length = in.readInt();
+	Lib.assertTrue(length == (translations == null ? -1 :
+				  translations.length),
+		       "checkpoint has a different page table or TLB size");
+	for (int i=0; i<length; i++) {
+	    if (!in.readBoolean())
+		continue;
+
+	    if (translations[i] == null)
+		translations[i] = new TranslationEntry();
+
+	    TranslationEntry entry = translations[i];
+	    entry.vpn = in.readInt();
+	    entry.ppn = in.readInt();
+	    entry.valid = in.readBoolean();
+	    entry.readOnly = in.readBoolean();
+	    entry.used = in.readBoolean();
+	    entry.dirty = in.readBoolean();
+	}
+
+	translationGeneration++;
+    }
+
     /**
      * Set the exception handler, called whenever a user exception occurs.
      *
@@ -91,20 +326,230 @@ public final class Processor {
 
 	Machine.autoGrader().runProcessor(privilege);
 
+	// resume the first program from a checkpoint, if asked to
+	if (restoreFile != null) {
+	    String fileName = restoreFile;
+	    restoreFile = null;
+	    Checkpoint.restore(privilege, fileName);
+	}
+
 	Instruction inst = new Instruction();
+
+	// another thread's batch may predate interrupts scheduled since
+	ticksLeft = 0;
+
+	if (tracing)
+	    runTracing(inst);
 	
 	while (true) {
 	    try {
+		if (usingBlocks) {
+		    runBlock(inst);
+		    continue;
+		}
+
 		inst.run();
 	    }
 	    catch (MipsException e) {
+		// the kernel must see the current time, and may schedule
+		// interrupts that are due before the end of the batch
+		flushTicks();
 		e.handle();
+		ticksLeft = 0;
 	    }
 
-	    privilege.interrupt.tick(false);
+	    tick();
 	}
     }
 
+    /**
+     * Advance the simulated time by one user tick. If batching ticks, ticks
+     * that cannot reach a pending interrupt are only counted here; only the
+     * tick at which the next interrupt is due goes through
+     * <tt>Interrupt</tt>, after the counted ticks have been added to the
+     * statistics in bulk.
+     */
+    private void tick() {
+	if (ticksLeft > 1) {
+	    ticksLeft--;
+	    batchedTicks++;
+	    return;
+	}
+
+	flushTicks();
+
+	if (sampleInterval > 0 && --sampleLeft == 0) {
+	    samples[(int) (numSamples++ % samples.length)] = registers[regPC];
+	    sampleLeft = sampleInterval;
+	}
+
+	privilege.interrupt.tick(false);
+
+	// a batch also ends at the next sample
+	if (batchingTicks) {
+	    ticksLeft = privilege.interrupt.userTicksUntilDue();
+	    if (sampleInterval > 0)
+		ticksLeft = Math.min(ticksLeft, sampleLeft);
+	}
+    }
+
+    /**
+     * Add the ticks counted by <tt>tick()</tt> to the simulated time.
+     */
+    private void flushTicks() {
+	if (batchedTicks > 0) {
+	    privilege.interrupt.addUserTicks(batchedTicks);
+	    if (sampleInterval > 0)
+		sampleLeft -= batchedTicks;
+	    batchedTicks = 0;
+	}
+    }
+
+    /**
+     * Return the number of user ticks between PC samples, as set by
+     * <tt>Processor.profileInterval</tt>. If not 0, the processor records the
+     * PC after every that many instructions in a ring buffer of the last
+     * <tt>pcSampleBufferSize</tt> samples.
+     *
+     * @return	the sampling interval, or 0 if not sampling.
+     */
+    public int getPCSampleInterval() {
+	return sampleInterval;
+    }
+
+    /**
+     * Return the number of PC samples this processor has taken. A reader can
+     * remember this number and later read every sample taken since, as long
+     * as no more than <tt>pcSampleBufferSize</tt> samples have been taken in
+     * between.
+     *
+     * @return	the number of PC samples taken.
+     */
+    public long getNumPCSamples() {
+	return numSamples;
+    }
+
+    /**
+     * Return the specified PC sample. Only the last
+     * <tt>pcSampleBufferSize</tt> samples are available.
+     *
+     * @param	number	the sample to return, less than
+     *			<tt>getNumPCSamples()</tt>.
+     * @return	the virtual address of the next instruction at the time of
+     *		the sample.
+     */
+    public int getPCSample(long number) {
+	Lib.assertTrue(number < numSamples &&
+		       number >= numSamples - pcSampleBufferSize);
+
+	return samples[(int) (number % samples.length)];
+    }
+
+    /**
+     * Execute instructions one at a time, printing what the debug flags ask
+     * for. Never returns. This is kept apart from <tt>run()</tt> so that the
+     * untraced loop does no work for tracing.
+     */
+    private void runTracing(Instruction inst) {
+	while (true) {
+	    try {
+		inst.trace();
+	    }
+	    catch (MipsException e) {
+		flushTicks();
+		e.handle();
+		ticksLeft = 0;
+	    }
+
+	    tick();
+	}
+    }
+
+    /**
+     * Execute the basic block starting at the current PC, advancing the
+     * simulated time after each instruction that completes. Only the
+     * first instruction is translated normally; the rest are fetched straight
+     * from the block, for as long as the PC, the mapping of the page, and the
+     * instruction words in memory all stay as they were when the block
+     * started. Anything else ends the block early, and the next instruction
+     * is fetched through the interpreter.
+     *
+     * @exception	MipsException	if an instruction caused an exception.
+     */
+    private void runBlock(Instruction inst) throws MipsException {
+	int pc = registers[regPC];
+	int paddr = translate(pc, 4, false, lastFetch);
+
+	int start = paddr/4;
+	BasicBlock block = blockCache[start];
+	if (block == null ||
+	    block.insts[0].value != memory.getInt(paddr)) {
+	    block = new BasicBlock(paddr);
+	    blockCache[start] = block;
+	}
+
+	TranslationEntry[] table = translations;
+	TranslationEntry entry = findEntry(pageFromAddress(pc));
+	int ppn = entry.ppn;
+	int generation = translationGeneration;
+
+	inst.run(block.insts[0]);
+	tick();
+
+	for (int i=1; i<block.insts.length; i++) {
+	    // an interrupt handler may have switched processes or remapped
+	    pc += 4;
+	    paddr += 4;
+	    if (registers[regPC] != pc || translations != table ||
+		translationGeneration != generation || !entry.valid ||
+		entry.ppn != ppn || (!usingTLB && translations[entry.vpn] != entry))
+		break;
+
+	    // the kernel may also have rewritten the code
+	    DecodedInstruction decoded = block.insts[i];
+	    if (decoded.value != memory.getInt(paddr)) {
+		blockCache[start] = null;
+		break;
+	    }
+
+	    entry.used = true;
+	    inst.run(decoded);
+	    tick();
+	}
+    }
+
+    /**
+     * Return the translation entry that <tt>translate()</tt> would use for
+     * the specified virtual page, or <tt>null</tt> if there is none.
+     */
+    private TranslationEntry findEntry(int vpn) {
+	if (!usingTLB) {
+	    if (translations == null || vpn >= translations.length)
+		return null;
+
+	    return translations[vpn];
+	}
+
+	int start = setStart(vpn, true);
+	for (int i=start; i<start+tlbWays; i++) {
+	    if (translations[i].valid && translations[i].vpn == vpn)
+		return translations[i];
+	}
+
+	return null;
+    }
+
+    /**
+     * Return the index of the first TLB entry of the set that maps the
+     * specified virtual page for the specified kind of access.
+     */
+    private int setStart(int vpn, boolean fetch) {
+	if (splitTLB)
+	    return (fetch ? 0 : tlbSize/2) + vpn % tlbSets;
+	else
+	    return (vpn % tlbSets) * tlbWays;
+    }
+
     /**
      * Read and return the contents of the specified CPU register.
      *
@@ -175,6 +620,7 @@ public final class Processor {
 	Lib.assertTrue(!usingTLB);
 
 	this.translations = pageTable;
+	translationGeneration++;
     }
 
     /**
@@ -188,6 +634,53 @@ public final class Processor {
 	return tlbSize;
     }
 
+    /**
+     * Return the number of entries in each set of this processor's TLB. This
+     * is the same as <tt>getTLBSize()</tt> for a fully associative TLB, and
+     * 1 for a direct-mapped TLB. A direct-mapped TLB is split in two: the
+     * first half maps instruction fetches and the second half data
+     * accesses, so that an instruction and the data it accesses never
+     * compete for the same entry.
+     *
+     * @return	the associativity of this processor's TLB.
+     */
+    public int getTLBAssociativity() {
+	Lib.assertTrue(usingTLB);
+
+	return tlbWays;
+    }
+
+    /**
+     * Return the index of the first TLB entry that can map the specified
+     * virtual page, for the kind of access that last missed in the TLB. The
+     * page can only be mapped by the <tt>getTLBAssociativity()</tt> entries
+     * starting at this index. A TLB miss handler can therefore always place
+     * the missing page here.
+     *
+     * @param	vpn	the virtual page number.
+     * @return	the index of the first entry in the set for <tt>vpn</tt>.
+     */
+    public int getTLBSetStart(int vpn) {
+	return getTLBSetStart(vpn, lastMissFetch);
+    }
+
+    /**
+     * Return the index of the first TLB entry that can map the specified
+     * virtual page for the specified kind of access. This only depends on
+     * <tt>fetch</tt> if the TLB is direct-mapped.
+     *
+     * @param	vpn	the virtual page number.
+     * @param	fetch	<tt>true</tt> for instruction fetches, <tt>false</tt>
+     *			for data accesses.
+     * @return	the index of the first entry in the set for <tt>vpn</tt>.
+     */
+    public int getTLBSetStart(int vpn, boolean fetch) {
+	Lib.assertTrue(usingTLB);
+	Lib.assertTrue(vpn >= 0 && vpn < maxPages);
+
+	return setStart(vpn, fetch);
+    }
+
     /**
      * Returns the specified TLB entry.
      *
@@ -205,8 +698,11 @@ public final class Processor {
      * Fill the specified TLB entry.
      *
      * <p>
-     * The TLB is fully associative, so the location of an entry within the TLB
-     * does not affect anything.
+     * By default the TLB is fully associative, so the location of an entry
+     * within the TLB does not affect anything. If
+     * <tt>Processor.tlbAssociativity</tt> is less than
+     * <tt>Processor.tlbSize</tt>, an entry is only found if it is written to
+     * one of the entries of its set; see <tt>getTLBSetStart()</tt>.
      *
      * @param	number	the index into the TLB.
      * @param	entry	the new contents of the TLB entry.
@@ -216,6 +712,7 @@ public final class Processor {
 	Lib.assertTrue(number >= 0 && number < tlbSize);
 
 	translations[number] = new TranslationEntry(entry);
+	translationGeneration++;
     }
 
     /**
@@ -230,14 +727,63 @@ public final class Processor {
 
     /**
      * Return a reference to the physical memory array. The size of this array
-     * is <tt>pageSize * getNumPhysPages()</tt>.
+     * is <tt>pageSize * getNumPhysPages()</tt>. There is no such array if
+     * memory is not on the Java heap (see <tt>Processor.directMemory</tt> and
+     * <tt>Processor.memoryFile</tt>); use <tt>readMemory()</tt> and
+     * <tt>writeMemory()</tt>, which work in either case.
      *
      * @return	the main memory array.
      */
     public byte[] getMemory() {
+	Lib.assertTrue(mainMemory != null, "physical memory is not on the heap");
+	
 	return mainMemory;
     }
 
+    /**
+     * Copy bytes from physical memory into an array.
+     *
+     * @param	paddr	the first physical address to read.
+     * @param	data	the array where the data will be stored.
+     * @param	offset	the first byte to write in the array.
+     * @param	length	the number of bytes to copy.
+     */
+    public void readMemory(int paddr, byte[] data, int offset, int length) {
+	Lib.assertTrue(paddr >= 0 && length >= 0 &&
+		       paddr+length <= pageSize*numPhysPages);
+
+	if (mainMemory != null) {
+	    System.arraycopy(mainMemory, paddr, data, offset, length);
+	}
+	else {
+	    ByteBuffer view = memory.duplicate();
+	    view.position(paddr);
+	    view.get(data, offset, length);
+	}
+    }
+
+    /**
+     * Copy bytes from an array into physical memory.
+     *
+     * @param	paddr	the first physical address to write.
+     * @param	data	the array containing the data to copy.
+     * @param	offset	the first byte to copy from the array.
+     * @param	length	the number of bytes to copy.
+     */
+    public void writeMemory(int paddr, byte[] data, int offset, int length) {
+	Lib.assertTrue(paddr >= 0 && length >= 0 &&
+		       paddr+length <= pageSize*numPhysPages);
+
+	if (mainMemory != null) {
+	    System.arraycopy(data, offset, mainMemory, paddr, length);
+	}
+	else {
+	    ByteBuffer view = memory.duplicate();
+	    view.position(paddr);
+	    view.put(data, offset, length);
+	}
+    }
+
     /**
      * Concatenate a page number and an offset into an address.
      *
@@ -294,14 +840,33 @@ public final class Processor {
      */
     private int translate(int vaddr, int size, boolean writing)
 	throws MipsException {
-	if (Lib.test(dbgProcessor))
+	return translate(vaddr, size, writing, lastData);
+    }
+
+    /**
+     * Translate a virtual address, trying the last translation made for the
+     * same kind of access before the page table or TLB. Instruction fetches
+     * and data accesses use separate entries so that neither evicts the
+     * other in a loop.
+     *
+     * @param	vaddr	the virtual address to translate.
+     * @param	size	the size of the memory reference (must be 1, 2, or 4).
+     * @param	writing	<tt>true</tt> if the memory reference is a write.
+     * @param	last	the last translation for this kind of access.
+     * @return		the physical address.
+     * @exception	MipsException	if a translation error occurred.
+     */
+    private int translate(int vaddr, int size, boolean writing,
+			  LastTranslation last) throws MipsException {
+	if (tracing && Lib.test(dbgProcessor))
 	    System.out.println("\ttranslate vaddr=0x" + Lib.toHexString(vaddr)
 			       + (writing ? ", write" : ", read..."));
 
 	// check alignment
 	if ((vaddr & (size-1)) != 0) {
+	    privilege.stats.numAlignmentFaults++;
 	    Lib.debug(dbgProcessor, "\t\talignment error");
-	    throw new MipsException(exceptionAddressError, vaddr);
+	    throw raise(exceptionAddressError, vaddr);
 	}
 
 	// calculate virtual page number and offset from the virtual address
@@ -310,44 +875,59 @@ public final class Processor {
 
 	TranslationEntry entry = null;
 
+	// the entry is still good if nothing was written through the API and
+	// the kernel has not invalidated or replaced it in its page table
+	if (last.vpn == vpn && last.generation == translationGeneration &&
+	    last.entry.valid &&
+	    (usingTLB || translations[vpn] == last.entry)) {
+	    entry = last.entry;
+	}
 	// if not using a TLB, then the vpn is an index into the table
-	if (!usingTLB) {
+	else if (!usingTLB) {
 	    if (translations == null || vpn >= translations.length ||
 		translations[vpn] == null ||
 		!translations[vpn].valid) {
 		privilege.stats.numPageFaults++;
 		Lib.debug(dbgProcessor, "\t\tpage fault");
-		throw new MipsException(exceptionPageFault, vaddr);
+		throw raise(exceptionPageFault, vaddr);
 	    }
 
 	    entry = translations[vpn];
 	}
-	// else, look through all TLB entries for matching vpn
+	// else, look through the TLB entries of the set for matching vpn
 	else {
-	    for (int i=0; i<tlbSize; i++) {
+	    boolean fetch = (last == lastFetch);
+	    int start = setStart(vpn, fetch);
+	    for (int i=start; i<start+tlbWays; i++) {
 		if (translations[i].valid && translations[i].vpn == vpn) {
 		    entry = translations[i];
 		    break;
 		}
 	    }
 	    if (entry == null) {
+		lastMissFetch = fetch;
 		privilege.stats.numTLBMisses++;
+		privilege.stats.numTLBSetMisses[start / tlbWays]++;
 		Lib.debug(dbgProcessor, "\t\tTLB miss");
-		throw new MipsException(exceptionTLBMiss, vaddr);
+		throw raise(exceptionTLBMiss, vaddr);
 	    }
 	}
 
+	last.vpn = vpn;
+	last.entry = entry;
+	last.generation = translationGeneration;
+
 	// check if trying to write a read-only page
 	if (entry.readOnly && writing) {
 	    Lib.debug(dbgProcessor, "\t\tread-only exception");
-	    throw new MipsException(exceptionReadOnly, vaddr);
+	    throw raise(exceptionReadOnly, vaddr);
 	}
 
 	// check if physical page number is out of range
 	int ppn = entry.ppn;
 	if (ppn < 0 || ppn >= numPhysPages) {
 	    Lib.debug(dbgProcessor, "\t\tbad ppn");
-	    throw new MipsException(exceptionBusError, vaddr);
+	    throw raise(exceptionBusError, vaddr);
 	}
 
 	// set used and dirty bits as appropriate
@@ -357,7 +937,7 @@ public final class Processor {
 
 	int paddr = (ppn*pageSize) + offset;
 
-	if (Lib.test(dbgProcessor))
+	if (tracing && Lib.test(dbgProcessor))
 	    System.out.println("\t\tpaddr=0x" + Lib.toHexString(paddr));	
 	return paddr;
     }
@@ -372,16 +952,25 @@ public final class Processor {
      * @exception	MipsException	if a translation error occurred.
      */
     private int readMem(int vaddr, int size) throws MipsException {
-	if (Lib.test(dbgProcessor))
+	if (tracing && Lib.test(dbgProcessor))
 	    System.out.println("\treadMem vaddr=0x" + Lib.toHexString(vaddr)
 			       + ", size=" + size);
 
 	Lib.assertTrue(size==1 || size==2 || size==4);
-	
-	int value = Lib.bytesToInt(mainMemory, translate(vaddr, size, false),
-				   size);
 
-	if (Lib.test(dbgProcessor))
+	int paddr = translate(vaddr, size, false);
+	if (counting)
+	    privilege.stats.numPageAccesses[paddr/pageSize]++;
+	
+	int value;
+	if (size == 4)
+	    value = memory.getInt(paddr);
+	else if (size == 2)
+	    value = memory.getShort(paddr);
+	else
+	    value = memory.get(paddr);
+
+	if (tracing && Lib.test(dbgProcessor))
 	    System.out.println("\t\tvalue read=0x" +
 			       Lib.toHexString(value, size*2));
 	
@@ -399,15 +988,23 @@ public final class Processor {
      */
     private void writeMem(int vaddr, int size, int value)
 	throws MipsException {
-	if (Lib.test(dbgProcessor))
+	if (tracing && Lib.test(dbgProcessor))
 	    System.out.println("\twriteMem vaddr=0x" + Lib.toHexString(vaddr)
 			       + ", size=" + size + ", value=0x"
 			       + Lib.toHexString(value, size*2));
 
 	Lib.assertTrue(size==1 || size==2 || size==4);
+
+	int paddr = translate(vaddr, size, true);
+	if (counting)
+	    privilege.stats.numPageAccesses[paddr/pageSize]++;
 	
-	Lib.bytesFromInt(mainMemory, translate(vaddr, size, true), size,
-			 value);
+	if (size == 4)
+	    memory.putInt(paddr, value);
+	else if (size == 2)
+	    memory.putShort(paddr, (short) value);
+	else
+	    memory.put(paddr, (byte) value);
     }
 
     /**
@@ -541,11 +1138,31 @@ public final class Processor {
     private boolean usingTLB;
     /** Number of TLB entries. */
     private int tlbSize = 4;
+    /** Number of TLB entries in each set. */
+    private int tlbWays = 4;
+    /** Number of TLB sets, in each half if the TLB is split. */
+    private int tlbSets = 1;
+    /**
+     * <tt>true</tt> if the TLB is direct-mapped, with separate halves for
+     * instruction fetches and data accesses.
+     */
+    private boolean splitTLB = false;
+    /** <tt>true</tt> if the last TLB miss was on an instruction fetch. */
+    private boolean lastMissFetch = false;
     /**
      * Either an associative or direct-mapped set of translation entries,
      * depending on whether there is a TLB.
      */
     private TranslationEntry[] translations;
+    /**
+     * Incremented whenever <tt>translations</tt> is replaced or one of its
+     * entries is overwritten through the API.
+     */
+    private int translationGeneration = 0;
+    /** The last translation used to fetch an instruction. */
+    private LastTranslation lastFetch = new LastTranslation();
+    /** The last translation used to load or store data. */
+    private LastTranslation lastData = new LastTranslation();
 
     /** Size of a page, in bytes. */
     public static final int pageSize = 0x400;
@@ -554,7 +1171,66 @@ public final class Processor {
     /** Number of physical pages in memory. */
     private int numPhysPages;
     /** Main memory for user programs. */
-    private byte[] mainMemory;
+    private byte[] mainMemory = null;
+    /**
+     * Main memory as a little-endian buffer. This wraps <tt>mainMemory</tt>
+     * if memory is on the heap, and is the only view of it otherwise.
+     */
+    private ByteBuffer memory;
+    /**
+     * Previously decoded instructions, indexed by physical word address. An
+     * entry is only reused if the word in memory still matches the word it
+     * was decoded from, so writes to memory (by the processor or through
+     * <tt>getMemory()</tt>) never require explicit invalidation.
+     */
+    private DecodedInstruction[] decodeCache;
+
+    /**
+     * <tt>true</tt> if any processor debug flag was given, in which case the
+     * processor runs the tracing interpreter loop.
+     */
+    private boolean tracing;
+    /** <tt>true</tt> if executing user code a basic block at a time. */
+    private boolean usingBlocks;
+    /**
+     * Basic blocks indexed by the physical word address of their first
+     * instruction, or <tt>null</tt> if not using basic blocks.
+     */
+    private BasicBlock[] blockCache = null;
+
+    /**
+     * One preallocated exception per cause, so that raising an exception
+     * does not allocate. See <tt>raise()</tt>.
+     */
+    private MipsException[] exceptions;
+
+    /** <tt>true</tt> if advancing the simulated time in batches. */
+    private boolean batchingTicks;
+    /**
+     * The number of calls to <tt>tick()</tt> left until an interrupt may be
+     * due, or 0 if unknown.
+     */
+    private long ticksLeft = 0;
+    /** User ticks counted by <tt>tick()</tt> but not yet added. */
+    private long batchedTicks = 0;
+
+    /** <tt>true</tt> if counting instructions and data accesses in Stats. */
+    private boolean counting;
+
+    /** The number of user ticks between PC samples, or 0 if not sampling. */
+    private int sampleInterval;
+    /** The number of user ticks until the next PC sample. */
+    private long sampleLeft;
+    /** The PC sample ring buffer, or <tt>null</tt> if not sampling. */
+    private int[] samples = null;
+    /** The number of PC samples taken, the next index into the buffer. */
+    private long numSamples = 0;
+
+    /** Number of PC samples kept by the processor. */
+    public static final int pcSampleBufferSize = 4096;
+
+    /** The checkpoint to resume from when first run, or <tt>null</tt>. */
+    private String restoreFile = null;
 
     /** The kernel exception handler, called on every user exception. */
     private Runnable exceptionHandler = null;
@@ -569,27 +1245,57 @@ public final class Processor {
 	}
     }
 
+    /**
+     * Return the preallocated exception for the specified cause, with no bad
+     * virtual address.
+     *
+     * @param	cause	the exception cause.
+     * @return	the exception to throw.
+     */
+    private MipsException raise(int cause) {
+	Lib.assertTrue(cause >= 0 && cause < exceptionNames.length);
+
+	MipsException e = exceptions[cause];
+	e.hasBadVAddr = false;
+	return e;
+    }
+
+    /**
+     * Return the preallocated exception for the specified cause, recording
+     * the virtual address that caused it.
+     *
+     * @param	cause	the exception cause.
+     * @param	badVAddr	the virtual address that caused the exception.
+     * @return	the exception to throw.
+     */
+    private MipsException raise(int cause, int badVAddr) {
+	MipsException e = raise(cause);
+	e.hasBadVAddr = true;
+	e.badVAddr = badVAddr;
+	return e;
+    }
+
+    /**
+     * A user exception. Instances are reused, and carry no stack trace. This
+     * is safe because <tt>handle()</tt> copies everything it needs into the
+     * registers before calling the kernel, which may switch to another
+     * thread that raises the same exception.
+     */
     private class MipsException extends Exception {
 	public MipsException(int cause) {
-	    Lib.assertTrue(cause >= 0 && cause < exceptionNames.length);
+	    super(null, null, false, false);
 
 	    this.cause = cause;
 	}
 
-	public MipsException(int cause, int badVAddr) {
-	    this(cause);
-
-	    hasBadVAddr = true;
-	    this.badVAddr = badVAddr;
-	}
-
 	public void handle() {
 	    writeRegister(regCause, cause);
 
 	    if (hasBadVAddr)
 		writeRegister(regBadVAddr, badVAddr);
 
-	    if (Lib.test(dbgDisassemble) || Lib.test(dbgFullDisassemble))
+	    if (tracing && (Lib.test(dbgDisassemble) ||
+			    Lib.test(dbgFullDisassemble)))
 		System.out.println("exception: " + exceptionNames[cause]);
 
 	    finishLoad();
@@ -616,88 +1322,112 @@ public final class Processor {
 	    writeBack();
 	}	
 
-	private boolean test(int flag) {
-	    return Lib.test(flag, flags);
-	}
-
-	private void fetch() throws MipsException {
+	/**
+	 * Execute the next instruction, printing it as the debug flags ask.
+	 */
+	public void trace() throws MipsException {
 	    if ((Lib.test(dbgDisassemble) && !Lib.test(dbgProcessor)) ||
 		Lib.test(dbgFullDisassemble))
 		System.out.print("PC=0x" + Lib.toHexString(registers[regPC])
 				 + "\t");
 
-	    value = readMem(registers[regPC], 4);
+	    if (Lib.test(dbgProcessor))
+		System.out.println("\treadMem vaddr=0x" +
+				   Lib.toHexString(registers[regPC]) +
+				   ", size=4");
+
+	    fetch();
+
+	    if (Lib.test(dbgProcessor))
+		System.out.println("\t\tvalue read=0x" +
+				   Lib.toHexString(value, 8));
+
+	    decode();
+
+	    if (Lib.test(dbgDisassemble) || Lib.test(dbgFullDisassemble))
+		print();
+
+	    execute();
+	    writeBack();
+
+	    if ((test(Mips.DST) || test(Mips.DELAYEDLOAD)) && dstReg != 0) {
+		if (Lib.test(dbgFullDisassemble)) {
+		    System.out.print("#0x" + Lib.toHexString((int) dst));
+		    if (test(Mips.DELAYEDLOAD))
+			System.out.print(" (delayed load)");
+		}
+	    }
+
+	    if ((Lib.test(dbgDisassemble) && !Lib.test(dbgProcessor)) ||
+		Lib.test(dbgFullDisassemble))
+		System.out.print("\n");
+	}
+
+	/**
+	 * Execute an instruction that has already been fetched and decoded.
+	 */
+	public void run(DecodedInstruction decoded) throws MipsException {
+	    decode(decoded);
+	    execute();
+	    writeBack();
+	}
+
+	private boolean test(int flag) {
+	    return Lib.test(flag, flags);
+	}
+
+	private void fetch() throws MipsException {
+	    // keep the physical address, it is the key into the decode cache
+	    paddr = translate(registers[regPC], 4, false, lastFetch);
+	    value = memory.getInt(paddr);
 	}
 	
 	private void decode() {
-	    op = Lib.extract(value, 26, 6);
-	    rs = Lib.extract(value, 21, 5);
-	    rt = Lib.extract(value, 16, 5);
-	    rd = Lib.extract(value, 11, 5);
-	    sh = Lib.extract(value, 6, 5);
-	    func = Lib.extract(value, 0, 6);
-	    target = Lib.extract(value, 0, 26);
-	    imm = Lib.extend(value, 0, 16);
-
-	    Mips info;
-	    switch (op) {
-	    case 0:
-		info = Mips.specialtable[func];
-		break;
-	    case 1:
-		info = Mips.regimmtable[rt];
-		break;
-	    default:
-		info = Mips.optable[op];
-		break;
+	    // reuse the static decoding if this word has not changed
+	    DecodedInstruction decoded = decodeCache[paddr/4];
+	    if (decoded == null || decoded.value != value) {
+		decoded = new DecodedInstruction(value);
+		decodeCache[paddr/4] = decoded;
 	    }
 
-	    operation = info.operation;
-	    name = info.name;
-	    format = info.format;
-	    flags = info.flags;
+	    decode(decoded);
+	}
+
+	private void decode(DecodedInstruction decoded) {
+	    op = decoded.op;
+	    rs = decoded.rs;
+	    rt = decoded.rt;
+	    rd = decoded.rd;
+	    sh = decoded.sh;
+	    func = decoded.func;
+	    target = decoded.target;
+	    imm = decoded.imm;
+
+	    operation = decoded.operation;
+	    name = decoded.name;
+	    format = decoded.format;
+	    flags = decoded.flags;
+	    size = decoded.size;
+	    dstReg = decoded.dstReg;
+	    instClass = decoded.instClass;
+	    srcRegs = decoded.srcRegs;
 
 	    mask = 0xFFFFFFFF;	
 	    branch = true;
-	
-	    // get memory access size
-	    if (test(Mips.SIZEB))
-		size = 1;
-	    else if (test(Mips.SIZEH))
-		size = 2;
-	    else if (test(Mips.SIZEW))
-		size = 4;
-	    else
-		size = 0;
 
 	    // get nextPC
 	    nextPC = registers[regNextPC]+4;
 
-	    // get dstReg
-	    if (test(Mips.DSTRA))
-		dstReg = regRA;
-	    else if (format == Mips.IFMT)
-		dstReg = rt;
-	    else if (format == Mips.RFMT)
-		dstReg = rd;
-	    else
-		dstReg = -1;
-
 	    // get jtarget
 	    if (format == Mips.RFMT)
 		jtarget = registers[rs];
 	    else if (format == Mips.IFMT)
-		jtarget = registers[regNextPC] + (imm<<2);
+		jtarget = registers[regNextPC] + decoded.branchOffset;
 	    else if (format == Mips.JFMT)
 		jtarget = (registers[regNextPC]&0xF0000000) | (target<<2);
 	    else
 		jtarget = -1;
 
-	    // get imm
-	    if (test(Mips.UNSIGNED)) {
-		imm &= 0xFFFF;
-	    }
-
 	    // get addr
 	    addr = registers[rs] + imm;
 
@@ -717,9 +1447,6 @@ public final class Processor {
 		src1 &= 0xFFFFFFFFL;
 		src2 &= 0xFFFFFFFFL;
 	    }	    
-
-	    if (Lib.test(dbgDisassemble) || Lib.test(dbgFullDisassemble))
-		print();	    
 	}
 
 	private void print() {
@@ -848,6 +1575,12 @@ public final class Processor {
 	private void execute() throws MipsException {
 	    int value;
 	    int preserved;
+
+	    if (counting) {
+		privilege.stats.numInstructions[instClass]++;
+		if (loadTarget != 0 && (srcRegs & (1<<loadTarget)) != 0)
+		    privilege.stats.numLoadDelayStalls++;
+	    }
 	    
 	    switch (operation) {
 	    case Mips.ADD:
@@ -869,7 +1602,7 @@ public final class Processor {
 			throw new ArithmeticException();
 		}
 		catch (ArithmeticException e) {
-		    throw new MipsException(exceptionOverflow);
+		    throw raise(exceptionOverflow);
 		}
 		break;
 
@@ -939,7 +1672,7 @@ public final class Processor {
 		break;
 
 	    case Mips.SYSCALL:
-		throw new MipsException(exceptionSyscall);
+		throw raise(exceptionSyscall);
 
 	    case Mips.LOAD:
 		value = readMem(addr, size);
@@ -1009,7 +1742,7 @@ public final class Processor {
 		System.err.println("Warning: encountered unimplemented inst");
 		
 	    case Mips.INVALID:
-		throw new MipsException(exceptionIllegalInstruction);
+		throw raise(exceptionIllegalInstruction);
 
 	    default:
 		Lib.assertNotReached();
@@ -1019,7 +1752,7 @@ public final class Processor {
 	private void writeBack() throws MipsException {
 	    // if instruction is signed, but carry bit !+ sign bit, throw
 	    if (test(Mips.OVERFLOW) && Lib.test(dst,31) != Lib.test(dst,32))
-		throw new MipsException(exceptionOverflow);
+		throw raise(exceptionOverflow);
 
 	    if (test(Mips.DELAYEDLOAD))
 		delayedLoad(dstReg, (int) dst, mask);
@@ -1032,29 +1765,18 @@ public final class Processor {
 	    if (test(Mips.DST) && dstReg != 0)
 		registers[dstReg] = (int) dst;
 
-	    if ((test(Mips.DST) || test(Mips.DELAYEDLOAD)) && dstReg != 0) {
-		if (Lib.test(dbgFullDisassemble)) {
-		    System.out.print("#0x" + Lib.toHexString((int) dst));
-		    if (test(Mips.DELAYEDLOAD))
-			System.out.print(" (delayed load)");
-		}
-	    }
-
 	    if (test(Mips.BRANCH) && branch) {
 		nextPC = jtarget;
 	    }
 
 	    advancePC(nextPC);
-
-	    if ((Lib.test(dbgDisassemble) && !Lib.test(dbgProcessor)) ||
-		Lib.test(dbgFullDisassemble))
-		System.out.print("\n");
 	}
     
 	// state used to execute a single instruction
-	int value, op, rs, rt, rd, sh, func, target, imm;
+	int paddr, value, op, rs, rt, rd, sh, func, target, imm;
 	int operation, format, flags;
 	String name;
+	int instClass, srcRegs;
 
 	int size;
 	int addr, nextPC, jtarget, dstReg;
@@ -1063,6 +1785,170 @@ public final class Processor {
 	boolean branch;
     }
 
+    /**
+     * A one-entry cache in front of the page table or TLB.
+     */
+    private static class LastTranslation {
+	/** The cached virtual page number, or -1 if none. */
+	int vpn = -1;
+	TranslationEntry entry;
+	/** The translation generation in which <tt>entry</tt> was found. */
+	int generation;
+    }
+
+    /**
+     * The parts of an instruction that depend only on the instruction word,
+     * and not on the contents of any registers.
+     */
+    private static class DecodedInstruction {
+	DecodedInstruction(int value) {
+	    this.value = value;
+
+	    op = Lib.extract(value, 26, 6);
+	    rs = Lib.extract(value, 21, 5);
+	    rt = Lib.extract(value, 16, 5);
+	    rd = Lib.extract(value, 11, 5);
+	    sh = Lib.extract(value, 6, 5);
+	    func = Lib.extract(value, 0, 6);
+	    target = Lib.extract(value, 0, 26);
+	    imm = Lib.extend(value, 0, 16);
+
+	    Mips info;
+	    switch (op) {
+	    case 0:
+		info = Mips.specialtable[func];
+		break;
+	    case 1:
+		info = Mips.regimmtable[rt];
+		break;
+	    default:
+		info = Mips.optable[op];
+		break;
+	    }
+
+	    operation = info.operation;
+	    name = info.name;
+	    format = info.format;
+	    flags = info.flags;
+
+	    // get memory access size
+	    if (Lib.test(Mips.SIZEB, flags))
+		size = 1;
+	    else if (Lib.test(Mips.SIZEH, flags))
+		size = 2;
+	    else if (Lib.test(Mips.SIZEW, flags))
+		size = 4;
+	    else
+		size = 0;
+
+	    // get dstReg
+	    if (Lib.test(Mips.DSTRA, flags))
+		dstReg = regRA;
+	    else if (format == Mips.IFMT)
+		dstReg = rt;
+	    else if (format == Mips.RFMT)
+		dstReg = rd;
+	    else
+		dstReg = -1;
+
+	    // get the registers read, from the operands in the name. rt is
+	    // written by immediate ALU ops and loads; lwl and lwr also read it,
+	    // but merge into a load in flight without stalling
+	    srcRegs = 0;
+	    String operands = name.substring(name.indexOf(' ')+1);
+	    for (int i=0; i<operands.length(); i++) {
+		switch (operands.charAt(i)) {
+		case Mips.RS:
+		case Mips.ADDR:
+		    srcRegs |= 1<<rs;
+		    break;
+		case Mips.RT:
+		    if (format != Mips.IFMT ||
+			!Lib.test(Mips.DST|Mips.DELAYEDLOAD, flags))
+			srcRegs |= 1<<rt;
+		    break;
+		}
+	    }
+
+	    // branches use the sign-extended immediate
+	    branchOffset = imm<<2;
+
+	    // get the class counted by Stats.numInstructions
+	    if (Lib.test(Mips.BRANCH, flags))
+		instClass = Stats.instBranch;
+	    else if (operation == Mips.MULT || operation == Mips.DIV)
+		instClass = Stats.instMulDiv;
+	    else if (operation == Mips.LOAD || operation == Mips.LWL ||
+		     operation == Mips.LWR)
+		instClass = (size == 1) ? Stats.instLoadByte :
+		    (size == 2) ? Stats.instLoadHalf : Stats.instLoadWord;
+	    else if (operation == Mips.STORE || operation == Mips.SWL ||
+		     operation == Mips.SWR)
+		instClass = (size == 1) ? Stats.instStoreByte :
+		    (size == 2) ? Stats.instStoreHalf : Stats.instStoreWord;
+	    else if (operation == Mips.SYSCALL)
+		instClass = Stats.instSyscall;
+	    else if (operation == Mips.INVALID || operation == Mips.UNIMPL)
+		instClass = Stats.instOther;
+	    else
+		instClass = Stats.instALU;
+
+	    // get imm
+	    if (Lib.test(Mips.UNSIGNED, flags)) {
+		imm &= 0xFFFF;
+	    }
+	}
+
+	/** The instruction word this was decoded from. */
+	int value;
+	int op, rs, rt, rd, sh, func, target, imm;
+	int operation, format, flags;
+	String name;
+	int size, dstReg, branchOffset, instClass;
+	/** Bit <i>i</i> is set if the instruction reads register <i>i</i>. */
+	int srcRegs;
+    }
+
+    /**
+     * A run of consecutive instructions in one physical page, ending with the
+     * delay slot of the first branch or jump, or with the first syscall or
+     * invalid instruction, or at the end of the page.
+     */
+    private class BasicBlock {
+	BasicBlock(int paddr) {
+	    int end = (paddr/pageSize + 1) * pageSize;
+	    int length = 0;
+	    boolean delaySlot = false;
+
+	    DecodedInstruction[] found = new DecodedInstruction[(end-paddr)/4];
+
+	    for (int addr=paddr; addr<end; addr+=4) {
+		int value = memory.getInt(addr);
+		DecodedInstruction decoded = decodeCache[addr/4];
+		if (decoded == null || decoded.value != value) {
+		    decoded = new DecodedInstruction(value);
+		    decodeCache[addr/4] = decoded;
+		}
+
+		found[length++] = decoded;
+
+		if (delaySlot ||
+		    decoded.operation == Mips.SYSCALL ||
+		    decoded.operation == Mips.UNIMPL ||
+		    decoded.operation == Mips.INVALID)
+		    break;
+
+		if (Lib.test(Mips.BRANCH, decoded.flags))
+		    delaySlot = true;
+	    }
+
+	    insts = new DecodedInstruction[length];
+	    System.arraycopy(found, 0, insts, 0, length);
+	}
+
+	DecodedInstruction[] insts;
+    }
+
     private static class Mips {
 	Mips() {
 	}
@@ -89,7 +89,19 @@ public class StandardConsole implements SerialConsole {
     private void receiveInterrupt() {
 	Lib.assertTrue(incomingKey == -1);
 
-	incomingKey = translateCharacter(in());
+	Journal journal = Machine.journal();
+	int c;
+
+	if (journal != null && journal.isReplaying()) {
+	    c = journal.replay(Journal.consoleInput, -1);
+	}
+	else {
+	    c = in();
+	    if (journal != null && c != -1)
+		journal.record(Journal.consoleInput, c);
+	}
+
+	incomingKey = translateCharacter(c);
 	if (incomingKey == -1) {
 	    scheduleReceiveInterrupt();
 	}
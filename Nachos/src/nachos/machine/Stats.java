@@ -4,6 +4,10 @@ package nachos.machine;
 
 import nachos.machine.*;
 
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+
 /**
  * An object that maintains Nachos runtime statistics.
  */
@@ -21,14 +25,117 @@ public final class Stats {
 	System.out.println("Ticks: total " + totalTicks
 			   + ", kernel " + kernelTicks
 			   + ", user " + userTicks);
+	if (idleTicks > 0)
+	    System.out.println("Idle ticks skipped " + idleTicks);
 	System.out.println("Disk I/O: reads " + numDiskReads
 			   + ", writes " + numDiskWrites);
 	System.out.println("Console I/O: reads " + numConsoleReads
 			   + ", writes " + numConsoleWrites);
 	System.out.println("Paging: page faults " + numPageFaults
 			   + ", TLB misses " + numTLBMisses);
+	if (numTLBSetMisses != null && numTLBSetMisses.length > 1) {
+	    System.out.print("TLB misses by set:");
+	    for (int i=0; i<numTLBSetMisses.length; i++)
+		System.out.print(" " + numTLBSetMisses[i]);
+	    System.out.println();
+	}
 	System.out.println("Network I/O: received " + numPacketsReceived
 			   + ", sent " + numPacketsSent);
+	if (numTCBPoolHits + numTCBPoolMisses > 0)
+	    System.out.println("TCB pool: hits " + numTCBPoolHits
+			       + ", misses " + numTCBPoolMisses);
+	if (numInstructions != null) {
+	    System.out.print("Instructions:");
+	    for (int i=0; i<numInstructions.length; i++)
+		System.out.print((i == 0 ? " " : ", ") + instructionClassNames[i]
+				 + " " + numInstructions[i]);
+	    System.out.println();
+	    System.out.println("Load delay stalls " + numLoadDelayStalls
+			       + ", alignment faults " + numAlignmentFaults);
+	    System.out.print("Data accesses by physical page:");
+	    for (int i=0; i<numPageAccesses.length; i++) {
+		if (numPageAccesses[i] != 0)
+		    System.out.print(" " + i + ":" + numPageAccesses[i]);
+	    }
+	    System.out.println();
+	}
+    }
+
+    /**
+     * Write every statistic to a checkpoint.
+     *
+     * @param	out	the checkpoint stream.
+     */
+    void save(DataOutputStream out) throws IOException {
+	out.writeLong(totalTicks);
+	out.writeLong(kernelTicks);
+	out.writeLong(userTicks);
+	out.writeLong(idleTicks);
+	out.writeInt(numDiskReads);
+	out.writeInt(numDiskWrites);
+	out.writeInt(numConsoleReads);
+	out.writeInt(numConsoleWrites);
+	out.writeInt(numPageFaults);
+	out.writeInt(numTLBMisses);
+	out.writeInt(numAlignmentFaults);
+	out.writeLong(numLoadDelayStalls);
+	out.writeInt(numPacketsSent);
+	out.writeInt(numPacketsReceived);
+
+	out.writeInt(numTLBSetMisses == null ? -1 : numTLBSetMisses.length);
+	for (int i=0; numTLBSetMisses != null && i<numTLBSetMisses.length; i++)
+	    out.writeInt(numTLBSetMisses[i]);
+	saveCounts(out, numInstructions);
+	saveCounts(out, numPageAccesses);
+    }
+
+    /**
+     * Read every statistic from a checkpoint written by <tt>save()</tt>. The
+     * optional counters are only restored if they are also enabled now.
+     *
+     * @param	in	the checkpoint stream.
+     */
+    void restore(DataInputStream in) throws IOException {
+	totalTicks = in.readLong();
+	kernelTicks = in.readLong();
+	userTicks = in.readLong();
+	idleTicks = in.readLong();
+	numDiskReads = in.readInt();
+	numDiskWrites = in.readInt();
+	numConsoleReads = in.readInt();
+	numConsoleWrites = in.readInt();
+	numPageFaults = in.readInt();
+	numTLBMisses = in.readInt();
+	numAlignmentFaults = in.readInt();
+	numLoadDelayStalls = in.readLong();
+	numPacketsSent = in.readInt();
+	numPacketsReceived = in.readInt();
+
+	int numSets = in.readInt();
+	for (int i=0; i<numSets; i++) {
+	    int misses = in.readInt();
+	    if (numTLBSetMisses != null && numTLBSetMisses.length == numSets)
+		numTLBSetMisses[i] = misses;
+	}
+	restoreCounts(in, numInstructions);
+	restoreCounts(in, numPageAccesses);
+    }
+
+    private static void saveCounts(DataOutputStream out, long[] counts)
+	throws IOException {
+	out.writeInt(counts == null ? -1 : counts.length);
+	for (int i=0; counts != null && i<counts.length; i++)
+	    out.writeLong(counts[i]);
+    }
+
+    private static void restoreCounts(DataInputStream in, long[] counts)
+	throws IOException {
+	int length = in.readInt();
+	for (int i=0; i<length; i++) {
+	    long count = in.readLong();
+	    if (counts != null && counts.length == length)
+		counts[i] = count;
+	}
     }
 
     /**
@@ -44,6 +151,11 @@ public final class Stats {
      * The total amount of simulated time that Nachos has spent in user mode.
      */
     public long userTicks = 0;
+    /**
+     * The amount of kernel time that the idle thread skipped over while
+     * waiting for an interrupt. This is included in <tt>kernelTicks</tt>.
+     */
+    public long idleTicks = 0;
 
     /** The total number of sectors Nachos has read from the simulated disk.*/
     public int numDiskReads = 0;
@@ -57,10 +169,66 @@ public final class Stats {
     public int numPageFaults = 0;
     /** The total number of TLB misses that have occurred. */
     public int numTLBMisses = 0;
+    /**
+     * The number of TLB misses that have occurred in each TLB set, or
+     * <tt>null</tt> if the processor has no TLB.
+     */
+    public int[] numTLBSetMisses = null;
+    /** The total number of unaligned memory references by user programs. */
+    public int numAlignmentFaults = 0;
+
+    /**
+     * The number of user instructions executed in each class (see
+     * <tt>instructionClassNames</tt>), or <tt>null</tt> if the processor is
+     * not counting instructions.
+     */
+    public long[] numInstructions = null;
+    /**
+     * The number of user instructions that read the target register of a
+     * delayed load still in progress. A processor with load interlocks would
+     * stall on each of these.
+     */
+    public long numLoadDelayStalls = 0;
+    /**
+     * The number of user loads and stores to each physical page, or
+     * <tt>null</tt> if the processor is not counting instructions.
+     */
+    public long[] numPageAccesses = null;
+
     /** The total number of packets Nachos has sent to the network. */
     public int numPacketsSent = 0;
     /** The total number of packets Nachos has received from the network. */
     public int numPacketsReceived = 0;
+    /**
+     * The number of TCBs started on a pooled Java thread. Only counted when
+     * <tt>TCB.poolSize</tt> is set.
+     */
+    public int numTCBPoolHits = 0;
+    /** The number of TCBs that found the TCB pool empty. */
+    public int numTCBPoolMisses = 0;
+
+    /** Indices into <tt>numInstructions</tt>. */
+    public static final int
+	instALU = 0,
+	instBranch = 1,
+	instMulDiv = 2,
+	instLoadByte = 3,
+	instLoadHalf = 4,
+	instLoadWord = 5,
+	instStoreByte = 6,
+	instStoreHalf = 7,
+	instStoreWord = 8,
+	instSyscall = 9,
+	instOther = 10;
+    /**
+     * Names of the instruction classes, indexed like
+     * <tt>numInstructions</tt>.
+     */
+    public static final String[] instructionClassNames = {
+	"alu", "branch", "mul/div",
+	"lb", "lh", "lw", "sb", "sh", "sw",
+	"syscall", "other"
+    };
 
     /**
      * The amount to advance simulated time after each user instructions is
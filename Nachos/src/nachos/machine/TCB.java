@@ -5,7 +5,9 @@ package nachos.machine;
 import nachos.security.*;
 import nachos.threads.KThread;
 
+import java.util.ArrayList;
 import java.util.Vector;
+import java.util.concurrent.locks.LockSupport;
 import java.security.PrivilegedAction;
 
 /**
@@ -14,6 +16,21 @@ import java.security.PrivilegedAction;
  * object.
  *
  * <p>
+ * Only one TCB runs at a time. A context switch hands off directly to the
+ * JVM thread of the next TCB with <tt>LockSupport.unpark()</tt>, and parks
+ * the JVM thread of the previous one. <tt>TCB.maxThreads</tt> and
+ * <tt>TCB.stackSize</tt> in <tt>nachos.conf</tt> raise the number of TCBs
+ * that can exist and lower the memory each one reserves.
+ * <tt>TCB.spinCount</tt> (default 0) makes a TCB poll for its turn that many
+ * times before parking, which can save system calls on multiprocessor hosts;
+ * <tt>SwitchBenchmark</tt> measures whether it does.
+ *
+ * <p>
+ * When a TCB is destroyed, its JVM thread can be kept in a pool of up to
+ * <tt>TCB.poolSize</tt> parked threads, and reused by the next TCB to start,
+ * instead of exiting. Each TCB is still bound to exactly one Nachos thread.
+ *
+ * <p>
  * Do not use any methods in <tt>java.lang.Thread</tt>, as they are not
  * compatible with the TCB API. Most <tt>Thread</tt> methods will either crash
  * Nachos or have no useful effect.
@@ -40,6 +57,19 @@ public final class TCB {
     public static void givePrivilege(Privilege privilege) {
 	TCB.privilege = privilege;
 	privilege.tcb = new TCBPrivilege();
+
+	threadLimit = Config.getInteger("TCB.maxThreads", maxThreads);
+	Lib.assertTrue(threadLimit > 0, "bad TCB.maxThreads");
+	stackSize = Config.getInteger("TCB.stackSize", 0);
+	Lib.assertTrue(stackSize >= 0, "bad TCB.stackSize");
+
+	// spinning can only help if the next TCB runs on another CPU, and
+	// even then only if switches come back quickly, so it is opt-in
+	spinCount = Config.getInteger("TCB.spinCount", 0);
+	Lib.assertTrue(spinCount >= 0, "bad TCB.spinCount");
+
+	poolSize = Config.getInteger("TCB.poolSize", 0);
+	Lib.assertTrue(poolSize >= 0, "bad TCB.poolSize");
     }
     
     /**
@@ -66,7 +96,7 @@ public final class TCB {
 	/* Make sure there aren't too many running TCBs already. This
 	 * limitation exists in an effort to prevent wild thread usage.
 	 */
-	Lib.assertTrue(runningThreads.size() < maxThreads);
+	Lib.assertTrue(runningThreads.size() < threadLimit);
 
 	isFirstTCB = (currentTCB == null);
 
@@ -85,16 +115,24 @@ public final class TCB {
 
 	this.target = target;
 
-	if (!isFirstTCB) {
+	if (!isFirstTCB && startPooled()) {
+	    /* A pooled Java thread has taken this TCB, and woken us up from
+	     * threadroot() just as a new one would.
+	     */
+	}
+	else if (!isFirstTCB) {
 	    /* If this is not the first TCB, we have to make a new Java thread
 	     * to run it. Creating Java threads is a privileged operation.
 	     */
 	    tcbTarget = new Runnable() {
-		    public void run() { threadroot(); }
+		    public void run() { carrierLoop(TCB.this); }
 		};
 
 	    privilege.doPrivileged(new Runnable() {
-		    public void run() { javaThread = new Thread(tcbTarget); }
+		    public void run() {
+			javaThread = new Thread(null, tcbTarget, "TCB",
+						stackSize);
+		    }
 		});
 
 	    /* The Java thread hasn't yet started, but we need to get it
@@ -207,6 +245,76 @@ public final class TCB {
 		Thread.currentThread() == currentTCB.javaThread);
     }
 
+    /**
+     * Start this TCB on a Java thread from the pool, if there is one.
+     *
+     * @return	<tt>true</tt> if a pooled thread was used.
+     */
+    private boolean startPooled() {
+	if (poolSize == 0)
+	    return false;
+
+	TCB idle = null;
+	synchronized (pool) {
+	    if (!pool.isEmpty())
+		idle = pool.remove(pool.size()-1);
+	}
+
+	if (idle == null) {
+	    privilege.stats.numTCBPoolMisses++;
+	    return false;
+	}
+
+	privilege.stats.numTCBPoolHits++;
+
+	/* The same ping-pong as with a new Java thread: the pooled thread
+	 * picks up this TCB, runs threadroot() and wakes us up.
+	 */
+	javaThread = idle.carrier;
+	currentTCB.running = false;
+
+	idle.successor = this;
+	LockSupport.unpark(javaThread);
+	currentTCB.waitForInterrupt();
+
+	return true;
+    }
+
+    /**
+     * Run TCBs on the current Java thread, starting with the specified one.
+     * When a TCB is destroyed, the thread waits in the pool for another TCB
+     * to run, unless the pool is full.
+     */
+    private static void carrierLoop(TCB tcb) {
+	while (tcb != null) {
+	    tcb.threadroot();
+
+	    // threadroot() returns normally only when the TCB was destroyed
+	    tcb = tcb.waitInPool();
+	}
+    }
+
+    /**
+     * Put the current Java thread, which ran this destroyed TCB, in the pool
+     * and wait for <tt>startPooled()</tt> to give it another TCB.
+     *
+     * @return	the next TCB to run, or <tt>null</tt> if the pool is full.
+     */
+    private TCB waitInPool() {
+	carrier = Thread.currentThread();
+
+	synchronized (pool) {
+	    if (pool.size() >= poolSize)
+		return null;
+	    pool.add(this);
+	}
+
+	while (successor == null)
+	    LockSupport.park(this);
+
+	return successor;
+    }
+
     private void threadroot() {
 	// this should be running the current thread
 	Lib.assertTrue(javaThread == Thread.currentThread());
@@ -280,29 +388,37 @@ public final class TCB {
     }
 
     /**
-     * Waits on the monitor bound to this TCB until its <tt>running</tt> flag
+     * Parks the Java thread bound to this TCB until its <tt>running</tt> flag
      * is set to <tt>true</tt>. <tt>waitForInterrupt()</tt> is used whenever a
      * TCB needs to go to wait for its turn to run. This includes the ping-pong
      * process of starting and destroying TCBs, as well as in context switching
      * from this TCB to another. We don't rely on <tt>currentTCB</tt>, since it
      * is updated by <tt>contextSwitch()</tt> before we get called.
+     *
+     * <p>
+     * A TCB is often switched back to soon after it switched away, so the
+     * flag is first polled <tt>spinCount</tt> times before parking. A switch
+     * during that window costs neither thread a system call. <tt>park()</tt>
+     * may return early, so the flag is checked again each time.
      */
-    private synchronized void waitForInterrupt() {
-	while (!running) {
-	    try { wait(); }
-	    catch (InterruptedException e) { }
-	}
+    private void waitForInterrupt() {
+	for (int i=0; i<spinCount && !running; i++)
+	    ;
+	
+	while (!running)
+	    LockSupport.park(this);
     }
 
     /**
      * Wake up this TCB by setting its <tt>running</tt> flag to <tt>true</tt>
-     * and signalling the monitor bound to it. Used in the ping-pong process of
-     * starting and destroying TCBs, as well as in context switching to this
-     * TCB.
+     * and unparking the Java thread bound to it. Used in the ping-pong process
+     * of starting and destroying TCBs, as well as in context switching to
+     * this TCB. If that thread is not parked yet, the unpark is remembered,
+     * and its next park returns immediately.
      */
-    private synchronized void interrupt() {
+    private void interrupt() {
 	running = true;
-	notify();
+	LockSupport.unpark(javaThread);
     }
 
     private void associateThread(KThread thread) {
@@ -313,10 +429,21 @@ public final class TCB {
 
 	Lib.assertTrue(thread != null);
 
-	if (nachosThread != null)
+	if (nachosThread != null) {
 	    Lib.assertTrue(thread == nachosThread);
-	else
+	}
+	else {
 	    nachosThread = thread;
+
+	    /* Name the Java thread after the Nachos thread, so that thread
+	     * dumps tell them apart. A pooled Java thread is renamed for each
+	     * TCB it runs.
+	     */
+	    final String name = thread.toString();
+	    privilege.doPrivileged(new Runnable() {
+		    public void run() { javaThread.setName(name); }
+		});
+	}
     }
 
     private static void authorizeDestroy(KThread thread) {
@@ -327,11 +454,24 @@ public final class TCB {
     }
 
     /**
-     * The maximum number of started, non-destroyed TCB's that can be in
-     * existence.
+     * The default maximum number of started, non-destroyed TCB's that can be
+     * in existence. <tt>TCB.maxThreads</tt> overrides it.
      */
     public static final int maxThreads = 250;
 
+    private static int threadLimit = maxThreads;
+    /** The stack size of each Java thread, or 0 for the JVM default. */
+    private static long stackSize = 0;
+    /** The number of times to poll <tt>running</tt> before parking. */
+    private static int spinCount = 0;
+
+    /**
+     * Destroyed TCBs whose Java threads are waiting in
+     * <tt>waitInPool()</tt>, at most <tt>poolSize</tt> of them.
+     */
+    private static ArrayList<TCB> pool = new ArrayList<TCB>();
+    private static int poolSize = 0;
+
     /**
      * A reference to the currently running TCB. It is initialized to
      * <tt>null</tt> when the <tt>TCB</tt> class is loaded, and then the first
@@ -354,7 +494,7 @@ public final class TCB {
      * on each TCB object. TCB objects are removed only in each of the
      * <tt>catch</tt> clauses of <tt>threadroot()</tt>, one of which is always
      * invoked on thread termination. The maximum number of threads in
-     * <tt>runningThreads</tt> is limited to <tt>maxThreads</tt> by
+     * <tt>runningThreads</tt> is limited to <tt>threadLimit</tt> by
      * <tt>start(Runnable)</tt>. If <tt>threadroot()</tt> drops the number of
      * TCB objects in <tt>runningThreads</tt> to zero, Nachos exits, so once
      * the first TCB is created, this vector is basically never empty.
@@ -388,7 +528,7 @@ public final class TCB {
      * destroying a TCB, this is temporarily true for a thread other than that
      * of the current TCB.
      */
-    private boolean running = false;
+    private volatile boolean running = false;
 
     /**
      * Set to <tt>true</tt> by <tt>destroy()</tt>, so that when
@@ -402,6 +542,11 @@ public final class TCB {
     private Runnable target;
     private Runnable tcbTarget;
 
+    /** The Java thread that ran this TCB, once it is in the pool. */
+    private Thread carrier = null;
+    /** The TCB given to <tt>carrier</tt> to run next. */
+    private volatile TCB successor = null;
+
     private static class TCBPrivilege implements Privilege.TCBPrivilege {
 	public void associateThread(KThread thread) {
 	    Lib.assertTrue(currentTCB != null);
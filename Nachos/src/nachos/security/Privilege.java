@@ -147,8 +147,11 @@ public abstract class Privilege {
 	 * @param	type	a name for the type of interrupt being
 	 *			scheduled.
 	 * @param	handler	the interrupt handler to call.
+	 * @return	the scheduled interrupt, which can be cancelled or
+	 *		rescheduled.
 	 */
-	public void schedule(long when, String type, Runnable handler);
+	public Interrupt.PendingInterrupt schedule(long when, String type,
+						   Runnable handler);
 	
 	/**
 	 * Advance the simulated time.
@@ -158,6 +161,24 @@ public abstract class Privilege {
 	 *		MIPS user code.
 	 */
 	public void tick(boolean inKernelMode);
+
+	/**
+	 * Return the number of user ticks until the next pending interrupt is
+	 * due. That many calls to <tt>tick(false)</tt> can be replaced by
+	 * <tt>addUserTicks()</tt> for all but the last.
+	 *
+	 * @return	the number of user ticks until an interrupt is due, or 1
+	 *		if every tick must go through <tt>tick()</tt>.
+	 */
+	public long userTicksUntilDue();
+
+	/**
+	 * Advance the simulated time by the specified number of user ticks,
+	 * without checking for interrupts. No interrupt may become due.
+	 *
+	 * @param	count	the number of user ticks.
+	 */
+	public void addUserTicks(long count);
     }
 
     /**
@@ -63,7 +63,9 @@ public class Alarm {
 			if(kThread != null)kThread.ready();	// safety check
 		}
 
-		KThread.yield();
+		//the scheduler decides whether this ends the time slice
+		if(ThreadedKernel.scheduler.timerInterrupt())
+			KThread.yield();
     	Machine.interrupt().restore(res);
     }
 
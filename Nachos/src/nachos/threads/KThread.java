@@ -195,14 +195,17 @@ public class KThread {
 
 	currentThread.status = statusFinished;
 
-		//Wake up the next thread in the Queue
-		if(waitQueue != null) {
-			KThread thread = waitQueue.nextThread();
-
-			while (thread != null) {
+		// wake up only the threads joined to this one. Each joiner gets
+		// access in turn; the last nextThread() finds the queue empty and
+		// takes access back from the last joiner, so no thread keeps the
+		// queue, or the donations through it, after this thread is gone
+		ThreadQueue joiners = currentThread.joinQueue;
+		if (joiners != null) {
+			currentThread.joinQueue = null;
+
+			KThread thread;
+			while ((thread = joiners.nextThread()) != null)
 				thread.ready();
-				thread = waitQueue.nextThread();
-			}
 		}
 
 		sleep();
@@ -277,6 +280,17 @@ public class KThread {
 	Machine.autoGrader().readyThread(this);
     }
 
+    /**
+     * Test whether this thread is ready to run: it is on the ready queue, or
+     * has just been taken off it and is about to run. A scheduler can use
+     * this to tell the ready queue apart from other queues.
+     *
+     * @return	<tt>true</tt> if this thread is in the ready state.
+     */
+    boolean isReady() {
+	return status == statusReady;
+    }
+
     /**
      * Waits for this thread to finish. If this thread is already finished,
      * return immediately. This method must only be called once; the second
@@ -288,27 +302,22 @@ public class KThread {
 		boolean interruptStatus = Machine.interrupt().disable();    // disable interrupt
 		Lib.debug(dbgThread, "Joining to thread: " + toString());
 
-        /* if status is finished, print out "this is finished" and restore the machine interrupt */
-
-		if(this.status == statusFinished){
-			System.out.println("THIS is finished");
+		// nothing to wait for if this thread is already finished
+		if (this.status == statusFinished) {
 			Machine.interrupt().restore(interruptStatus);
 			return;
 		}
-        // create queue and add thread onto queue
-		if(waitQueue == null) {
-			System.out.println("queue NULL");
-			waitQueue = ThreadedKernel.scheduler.newThreadQueue(true);
-			waitQueue.acquire(this);    // acquire thread on wait queue
-		}
 
-		// if acquired thread is not equal to current thread and current thread status not finished
-		if (this != currentThread && currentThread.status != statusFinished) {
-			System.out.println("NOT current thread");   // not the current thread
-			waitQueue.waitForAccess(currentThread); // wait for access on queue
-			currentThread.sleep();  // current thread goes to sleep
+		// created on the first join, owned by this thread so that joiners
+		// donate their priority to it
+		if (joinQueue == null) {
+			joinQueue = ThreadedKernel.scheduler.newThreadQueue(true);
+			joinQueue.acquire(this);
 		}
 
+		joinQueue.waitForAccess(currentThread);
+		currentThread.sleep();
+
 		Machine.interrupt().restore(interruptStatus);   // return machine
     }
 
@@ -340,8 +349,11 @@ public class KThread {
      */
     private static void runNextThread() {
 	KThread nextThread = readyQueue.nextThread();
-	if (nextThread == null)
+	if (nextThread == null) {
+	    // nothing can become ready before the next interrupt
+	    Machine.interrupt().idle();
 	    nextThread = idleThread;
+	}
 
 	nextThread.run();
     }
@@ -477,10 +489,9 @@ public class KThread {
     private static int numCreated = 0;
 
 
-    //ADDED STUFF
-	private static ThreadQueue waitQueue = null;
+    /** Threads waiting in <tt>join()</tt> for this thread to finish. */
+	private ThreadQueue joinQueue = null;
 
-	//////////////////////
 	private static ThreadQueue readyQueue = null;
     private static KThread currentThread = null;
     private static KThread toBeDestroyed = null;
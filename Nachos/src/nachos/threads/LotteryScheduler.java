@@ -2,9 +2,7 @@ package nachos.threads;
 
 import nachos.machine.*;
 
-import java.util.Random;
-import java.util.TreeSet;
-import java.util.HashSet;
+import java.util.ArrayList;
 import java.util.Iterator;
 
 
@@ -40,7 +38,7 @@ public class LotteryScheduler extends PriorityScheduler {
 
         ThreadQueue queue1 = scheduler.newThreadQueue(true);
         ThreadQueue queue2 = scheduler.newThreadQueue(true);
-        ThreadQueue queue3 = scheduler.newThreadQueue(true);
+        ThreadQueue queue3 = scheduler.newThreadQueue(false);
 
         KThread thread1 = new KThread(); thread1.setName("thread1");
         KThread thread2 = new KThread(); thread2.setName("thread2");
@@ -52,8 +50,23 @@ public class LotteryScheduler extends PriorityScheduler {
         queue1.acquire(thread1);
         queue1.waitForAccess(thread2);
         queue1.waitForAccess(thread3);
+        Lib.assertTrue(scheduler.getEffectivePriority(thread1) == 3);
 
+        // tickets are passed along a chain of holders
+        queue2.acquire(thread3);
+        queue2.waitForAccess(thread4);
+        Lib.assertTrue(scheduler.getEffectivePriority(thread3) == 2);
+        Lib.assertTrue(scheduler.getEffectivePriority(thread1) == 4);
 
+        // a waiter's new tickets are counted in its queue's tree
+        scheduler.setPriority(thread2, 10);
+        Lib.assertTrue(scheduler.getEffectivePriority(thread1) == 13);
+
+        // a queue that does not transfer tickets leaves its holder alone
+        queue3.acquire(thread2);
+        queue3.waitForAccess(thread1);
+        Lib.assertTrue(scheduler.getEffectivePriority(thread2) == 10);
+        Lib.assertTrue(scheduler.getEffectivePriority(thread1) == 13);
 
         Machine.interrupt().restore(res);
     }
@@ -106,110 +119,282 @@ public class LotteryScheduler extends PriorityScheduler {
         Lib.assertTrue(Machine.interrupt().disabled());
 
         //Lib.assertTrue(priority >= PRIORITY_MINIMUM);
-        Lib.assertTrue(priority >= priorityMinimum
-                && priority <= priorityMaximum);
+        Lib.assertTrue(priority >= PRIORITY_MINIMUM
+                && priority <= PRIORITY_MAXIMUM);
         // set priority
         getThreadState(thread).setPriority(priority);
     }
 
     public boolean increasePriority() {
         // disable interrupt
-        Machine.interrupt().disable();
+        boolean intStatus = Machine.interrupt().disable();
 
         KThread thread = KThread.currentThread();
         int priority = getPriority(thread);
         // return false if priority is equaled to max priority
-        if(priority == PRIORITY_MAXIMUM)
+        if(priority == PRIORITY_MAXIMUM) {
+            Machine.interrupt().restore(intStatus);
             return false;
+        }
         // set current priority to +1 higher
         setPriority(thread, priority+1);
 
-        Machine.interrupt().enable();
+        Machine.interrupt().restore(intStatus);
         return true;
     }
 
     public boolean decreasePriority() {
         //disable interrupt
-        Machine.interrupt().disable();
+        boolean intStatus = Machine.interrupt().disable();
 
         KThread thread = KThread.currentThread();
         int priority = getPriority(thread);
         // if priority equal min priority, return false
-        if(priority == PRIORITY_MINIMUM)
+        if(priority == PRIORITY_MINIMUM) {
+            Machine.interrupt().restore(intStatus);
             return false;
-        setPriority(thread, priority+1);
+        }
+        setPriority(thread, priority-1);
 
-        Machine.interrupt().enable();
+        Machine.interrupt().restore(intStatus);
         return true;
     }
 
 
 
-    protected class LotteryQueue extends LotteryScheduler.PriorityQueue{//<<<<<<<<<<<<<<<<<<<<<<<<<<<<<<<<<<<<<<<<<<<<<
+    /**
+     * A lottery queue. Instead of the priority lists it inherits, it keeps
+     * the tickets of its waiters in a Fenwick tree, so adding, removing and
+     * drawing a winner, changing a waiter's tickets and totalling the tickets
+     * all take O(log n) time or less. Ticket sums are <tt>long</tt>, so any
+     * number of threads may hold up to <tt>PRIORITY_MAXIMUM</tt> tickets
+     * each.
+     */
+    protected class LotteryQueue extends LotteryScheduler.PriorityQueue{
         LotteryQueue(boolean transferPriority){
             super(transferPriority);
         }
 
         @Override
-        protected ThreadState pickNextThread() { System.out.println(controller + " " + this);
+        protected ThreadState pickNextThread() {
+            if (numWaiting == 0)
+                return null;
+            // every thread holds at least PRIORITY_MINIMUM tickets
+            Lib.assertTrue(totalTickets > 0);
+
+            // the winner holds ticket number winningTicket
+            long winningTicket = (long) (Lib.random() * totalTickets);
+            if (winningTicket >= totalTickets)
+                winningTicket = totalTickets - 1;
+
+            // find the first slot whose prefix sum exceeds winningTicket
+            int slot = 0;
+            for (int step = Integer.highestOneBit(slots.length - 1); step > 0;
+                 step >>= 1) {
+                if (slot + step < slots.length && tree[slot + step] <= winningTicket) {
+                    slot += step;
+                    winningTicket -= tree[slot];
+                }
+            }
 
-            int totalTickets = getEffectivePriority(); //should be sum of tickets
-            if(totalTickets == 0) return null;
+            Lib.assertTrue(slots[slot + 1] != null);
+            return slots[slot + 1];
+        }
 
-            int winningTicket = new Random().nextInt(totalTickets);
+        /**
+         * Return the total number of tickets held by waiting threads.
+         *
+         * @return  the sum of the waiters' effective tickets.
+         */
+        public long totalTickets() {
+            return totalTickets;
+        }
 
-            ThreadState state = null;
+        public void print() {
+            Lib.assertTrue(Machine.interrupt().disabled());
+            for(ThreadState threadState: this)
+                System.out.print(((LotThreadState) threadState).tickets +" ");
+            System.out.println("");
+        }
 
-            for(ThreadState threadstate : priorityQueue){
-                state = threadstate;
-                winningTicket -= threadstate.getPriority();
+        @Override
+        public boolean isEmpty() {
+            return numWaiting == 0;
+        }
 
-                if(winningTicket <= 0){
-                    System.out.println("returning "+ threadstate);
-                    return state;
-                }
+        /**
+         * Iterate over the waiting threads, in no particular order.
+         */
+        @Override
+        public Iterator<ThreadState> iterator() {
+            ArrayList<ThreadState> waiting = new ArrayList<ThreadState>();
+            for (int i = 1; i < slots.length; i++) {
+                if (slots[i] != null)
+                    waiting.add(slots[i]);
             }
+            return waiting.iterator();
+        }
 
-            Lib.assertTrue(state != null);
-            return state;
+        @Override
+        void add(ThreadState threadState) {
+            Lib.assertTrue(threadState.waitingOn == null);
+            threadState.waitingOn = this;
+
+            LotThreadState state = (LotThreadState) threadState;
+            if (numFree == 0)
+                grow();
+            state.slot = freeSlots[--numFree];
+            slots[state.slot] = state;
+            state.weight = 0;
+            setWeight(state);
+            numWaiting++;
         }
 
-        public void print() {
-            Lib.assertTrue(Machine.interrupt().disabled());
-            // implement me (if you want)
-            for(ThreadState threadState: priorityQueue)
-                System.out.print(threadState.priority +" ");
-            System.out.println("");
+        @Override
+        void remove(ThreadState threadState) {
+            Lib.assertTrue(threadState.waitingOn == this);
+            threadState.waitingOn = null;
+
+            LotThreadState state = (LotThreadState) threadState;
+            update(state.slot, -state.weight);
+            totalTickets -= state.weight;
+            slots[state.slot] = null;
+            freeSlots[numFree++] = state.slot;
+            state.slot = 0;
+            numWaiting--;
         }
 
+        /**
+         * Update the tickets a waiting thread counts for after they changed.
+         */
         @Override
-        public String toString(){
-            print();
-            return "";
+        void reposition(ThreadState threadState) {
+            Lib.assertTrue(threadState.waitingOn == this);
+            setWeight((LotThreadState) threadState);
+        }
+
+        private void setWeight(LotThreadState state) {
+            long delta = state.tickets - state.weight;
+            update(state.slot, delta);
+            totalTickets += delta;
+            state.weight = state.tickets;
         }
 
+        private void update(int slot, long delta) {
+            for (; slot < tree.length; slot += slot & -slot)
+                tree[slot] += delta;
+        }
+
+        /**
+         * Double the number of slots, and rebuild the tree over them.
+         */
+        private void grow() {
+            int oldCapacity = slots.length - 1;
+            int capacity = oldCapacity * 2;
+
+            LotThreadState[] oldSlots = slots;
+            slots = new LotThreadState[capacity + 1];
+            System.arraycopy(oldSlots, 0, slots, 0, oldSlots.length);
+
+            tree = new long[capacity + 1];
+            for (int i = 1; i <= capacity; i++) {
+                if (slots[i] != null)
+                    tree[i] += slots[i].weight;
+                int parent = i + (i & -i);
+                if (parent <= capacity)
+                    tree[parent] += tree[i];
+            }
+
+            freeSlots = new int[capacity];
+            numFree = 0;
+            for (int i = capacity; i > oldCapacity; i--)
+                freeSlots[numFree++] = i;
+        }
+
+        /** The waiter in each slot; slot 0 is unused. */
+        private LotThreadState[] slots = new LotThreadState[initialSlots + 1];
+        /** The Fenwick tree over the waiters' tickets. */
+        private long[] tree = new long[initialSlots + 1];
+        private int[] freeSlots = {4, 3, 2, 1};
+        private int numFree = initialSlots;
+        private int numWaiting = 0;
+        private long totalTickets = 0;
     }
 
-    protected class LotThreadState extends LotteryScheduler.ThreadState{//<<<<<<<<<<<<<<<<<<<<<<<<<<<<<<<<<<<<<<<<<<<<<
+    private static final int initialSlots = 4;
+
+    protected class LotThreadState extends LotteryScheduler.ThreadState{
         private LotThreadState(KThread thread) {
             super(thread);
         }
 
+        /**
+         * Return the effective tickets of the associated thread, limited to
+         * <tt>PRIORITY_MAXIMUM</tt>. Use <tt>getTickets()</tt> for the exact
+         * number.
+         */
         @Override
-        public int getEffectivePriority() {System.out.println(this + " LOTTERY EFFECTIVE");
-            int tickets = getPriority();
-
-            for (PriorityQueue myQueue : capturedResources)  {
-                for( ThreadState currentThread : myQueue.priorityQueue) {
-                    if (currentThread == this)
-                        continue;
-                    tickets += currentThread.getEffectivePriority();
-                }
-            }
-            System.out.println("Tickets " + tickets );
+        public int getEffectivePriority() {
+            return effectivePriority;
+        }
+
+        /**
+         * Return the tickets of the associated thread plus the tickets of
+         * every thread waiting on a queue it holds, directly or through other
+         * threads.
+         *
+         * @return  the effective tickets of the associated thread.
+         */
+        public long getTickets() {
             return tickets;
         }
-    }
 
+        /**
+         * Recompute the effective tickets of the associated thread, and pass
+         * a change on along the chain of queue holders, as in
+         * <tt>PriorityScheduler</tt>. Tickets add instead of taking the
+         * maximum, but each queue keeps its total, so only the queues held by
+         * each thread on the chain have to be looked at.
+         */
+        @Override
+        public void updateEffectivePriority() {
+            LotThreadState state = this;
+
+            while (state != null) {
+                long newTickets = state.computeTickets();
+                if (newTickets == state.tickets)
+                    return;
+
+                state.tickets = newTickets;
+                state.effectivePriority =
+                    (int) Math.min(newTickets, PRIORITY_MAXIMUM);
+
+                PriorityQueue queue = state.waitingOn;
+                if (queue == null)
+                    return;
+
+                queue.reposition(state);
+                state = queue.transferPriority ?
+                    (LotThreadState) queue.controller : null;
+            }
+        }
+
+        private long computeTickets() {
+            long tickets = getPriority();
 
+            for (PriorityQueue queue : capturedResources) {
+                if (queue.transferPriority)
+                    tickets += ((LotteryQueue) queue).totalTickets();
+            }
+
+            return tickets;
+        }
+
+        /** The effective tickets of the associated thread. */
+        long tickets;
+        /** The tickets this thread counts for in its queue's tree. */
+        long weight;
+        /** This thread's slot in the tree of the queue it waits on. */
+        int slot;
+    }
 }
@@ -0,0 +1,510 @@
+package nachos.threads;
+
+import nachos.machine.*;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.LinkedList;
+import java.util.ListIterator;
+
+/**
+ * A multi-level feedback queue scheduler. Threads are kept on one of several
+ * levels, and a queue always gives access to a thread on the highest level
+ * (level 0), first-come first-serve within a level.
+ *
+ * <p>
+ * Levels are decided by how threads use the processor:
+ *
+ * <ul>
+ * <li>A new thread starts on level 0.
+ * <li>A thread that uses up the quantum of its level, in one go or over
+ * several turns, moves down a level. Each level has a longer quantum than the
+ * one above it, so CPU-bound threads run less often, for longer.
+ * <li>A thread that is woken up after blocking, for example on I/O or a
+ * semaphore, moves up a level, so interactive threads are quick to respond.
+ * Forking a thread is not a wake-up, so it does not preempt the parent.
+ * <li>Every <tt>MLFQScheduler.boostInterval</tt> ticks, every thread moves
+ * back to level 0, so CPU-bound threads are never starved.
+ * </ul>
+ *
+ * <p>
+ * Time slicing is driven by the timer interrupt: at each one, the alarm asks
+ * <tt>timerInterrupt()</tt> whether the current thread should yield. It does
+ * if it has used up its quantum, or if a thread on a higher level has been
+ * woken up since the last interrupt. Usage is counted in clock ticks, from
+ * when the ready queue chooses a thread to when it next waits or is
+ * interrupted. Taking a lock without waiting does not start a new turn. Since
+ * the timer only interrupts about every <tt>Stats.TimerTicks</tt> ticks,
+ * quanta are best set to multiples of that.
+ *
+ * <p>
+ * Queues that transfer priority donate levels: a thread that holds a lock or
+ * is being joined runs on the highest level of any thread waiting on it,
+ * directly or through a chain of holders, so that a thread on a low level
+ * cannot hold up one on a higher level until the next boost.
+ *
+ * <p>
+ * The number of levels is set by <tt>MLFQScheduler.levels</tt>, and the
+ * quantum of level <i>i</i> by <tt>MLFQScheduler.quantum</tt><i>i</i>. By
+ * default there are 4 levels, and level <i>i</i> gets 2<sup><i>i</i></sup>
+ * timer interrupts' worth of ticks.
+ */
+public class MLFQScheduler extends Scheduler {
+    /**
+     * Allocate a new MLFQ scheduler.
+     */
+    public MLFQScheduler() {
+	int numLevels = Config.getInteger("MLFQScheduler.levels", 4);
+	Lib.assertTrue(numLevels > 0);
+
+	quanta = new long[numLevels];
+	for (int i=0; i<numLevels; i++) {
+	    quanta[i] = Config.getInteger("MLFQScheduler.quantum" + i,
+					  Stats.TimerTicks << i);
+	    Lib.assertTrue(quanta[i] > 0);
+	}
+
+	boostInterval = Config.getInteger("MLFQScheduler.boostInterval",
+					  Stats.TimerTicks * 100);
+	nextBoost = Machine.timer().getTime() + boostInterval;
+    }
+
+    /**
+     * Allocate a new MLFQ thread queue.
+     *
+     * @param	transferPriority	<tt>true</tt> if the thread holding
+     *					the queue should run on the level of
+     *					the highest thread waiting on it.
+     * @return	a new MLFQ thread queue.
+     */
+    public ThreadQueue newThreadQueue(boolean transferPriority) {
+	return new MLFQQueue(transferPriority);
+    }
+
+    /**
+     * Return the priority of the specified thread: the number of levels
+     * below its level, so that threads on level 0 have the highest priority.
+     */
+    public int getPriority(KThread thread) {
+	Lib.assertTrue(Machine.interrupt().disabled());
+
+	return quanta.length-1 - getThreadState(thread).getLevel();
+    }
+
+    /**
+     * Return the effective priority of the specified thread: the number of
+     * levels below its effective level, which takes donations into account.
+     */
+    public int getEffectivePriority(KThread thread) {
+	Lib.assertTrue(Machine.interrupt().disabled());
+
+	return quanta.length-1 - getThreadState(thread).getEffectiveLevel();
+    }
+
+    /**
+     * Charge the current thread for the time it has run, and decide whether
+     * it should yield. Also moves every thread back to level 0 if it is time
+     * for a boost.
+     *
+     * @return	<tt>true</tt> if the current thread has used up its quantum,
+     *		or if a thread on a higher level is waiting to run.
+     */
+    public boolean timerInterrupt() {
+	Lib.assertTrue(Machine.interrupt().disabled());
+
+	long now = Machine.timer().getTime();
+	if (boostInterval > 0 && now >= nextBoost) {
+	    boostEpoch++;
+	    nextBoost = now + boostInterval;
+	}
+
+	ThreadState current = getThreadState(KThread.currentThread());
+	boolean expired = current.charge();
+
+	boolean preempt = expired || wokenLevel < current.getEffectiveLevel();
+	wokenLevel = Integer.MAX_VALUE;
+
+	return preempt;
+    }
+
+    /**
+     * Return the scheduling state of the specified thread.
+     *
+     * @param	thread	the thread whose scheduling state to return.
+     * @return	the scheduling state of the specified thread.
+     */
+    protected ThreadState getThreadState(KThread thread) {
+	if (thread.schedulingState == null)
+	    thread.schedulingState = new ThreadState(thread);
+
+	return (ThreadState) thread.schedulingState;
+    }
+
+    /**
+     * A <tt>ThreadQueue</tt> with a FIFO list for each level. Threads are
+     * kept on the list for their effective level.
+     */
+    protected class MLFQQueue extends ThreadQueue {
+	MLFQQueue(boolean transferPriority) {
+	    this.transferPriority = transferPriority;
+
+	    levels = new ArrayList<LinkedList<ThreadState>>(quanta.length);
+	    for (int i=0; i<quanta.length; i++)
+		levels.add(new LinkedList<ThreadState>());
+	}
+
+	/**
+	 * Add a thread to the end of the list for its effective level. The
+	 * current thread is charged for its turn so far. A thread that has run
+	 * before and is being made ready by another thread is being woken up,
+	 * and so moves up a level first. If this queue transfers priority, the
+	 * thread donates its level to the holder.
+	 *
+	 * @param	thread	the thread to add.
+	 */
+	public void waitForAccess(KThread thread) {
+	    Lib.assertTrue(Machine.interrupt().disabled());
+
+	    ThreadState threadState = getThreadState(thread);
+	    if (thread == KThread.currentThread())
+		threadState.charge();
+	    else if (thread.isReady() && threadState.ran)
+		threadState.wake();
+
+	    checkBoost();
+
+	    Lib.assertTrue(threadState.waitingOn == null);
+	    threadState.sequence = numAdded++;
+	    threadState.waitingOn = this;
+	    insert(threadState);
+	    numWaiting++;
+
+	    if (transferPriority && holder != null)
+		holder.updateEffectiveLevel();
+	}
+
+	/**
+	 * Remove the first thread on the highest level that has one. If it is
+	 * about to run, it starts a new turn on the processor. The old holder
+	 * loses what was donated to it through this queue, and the thread
+	 * returned becomes the new holder.
+	 *
+	 * @return	the thread, or <tt>null</tt> if the queue is empty.
+	 */
+	public KThread nextThread() {
+	    Lib.assertTrue(Machine.interrupt().disabled());
+
+	    if (holder != null) {
+		ThreadState oldHolder = holder;
+		holder = null;
+		oldHolder.heldQueues.remove(this);
+		oldHolder.updateEffectiveLevel();
+	    }
+
+	    if (numWaiting == 0)
+		return null;
+
+	    checkBoost();
+
+	    for (LinkedList<ThreadState> level : levels) {
+		if (!level.isEmpty()) {
+		    ThreadState threadState = level.removeFirst();
+		    numWaiting--;
+		    threadState.waitingOn = null;
+
+		    if (threadState.thread.isReady())
+			threadState.start();
+		    acquire(threadState);
+		    return threadState.thread;
+		}
+	    }
+
+	    Lib.assertNotReached();
+	    return null;
+	}
+
+	/**
+	 * The specified thread has received access without waiting. It keeps
+	 * running, so its turn on the processor carries on. If this queue
+	 * transfers priority, it becomes the holder.
+	 */
+	public void acquire(KThread thread) {
+	    Lib.assertTrue(Machine.interrupt().disabled());
+
+	    acquire(getThreadState(thread));
+	}
+
+	private void acquire(ThreadState threadState) {
+	    if (!transferPriority)
+		return;
+
+	    Lib.assertTrue(holder == null);
+	    holder = threadState;
+	    holder.heldQueues.add(this);
+	    holder.updateEffectiveLevel();
+	}
+
+	public void print() {
+	    Lib.assertTrue(Machine.interrupt().disabled());
+
+	    for (int i=0; i<levels.size(); i++) {
+		for (ThreadState threadState : levels.get(i))
+		    System.out.print(threadState.thread + "@" + i + " ");
+	    }
+	    System.out.println();
+	}
+
+	/**
+	 * Return the highest level any thread is waiting on.
+	 *
+	 * @return	the highest level waited on, or <tt>Integer.MAX_VALUE</tt>
+	 *		if the queue is empty.
+	 */
+	int highestLevel() {
+	    checkBoost();
+
+	    for (int i=0; i<levels.size(); i++) {
+		if (!levels.get(i).isEmpty())
+		    return i;
+	    }
+	    return Integer.MAX_VALUE;
+	}
+
+	/**
+	 * Move a waiting thread whose effective level has changed to the list
+	 * for its new level, keeping the order in which threads started
+	 * waiting.
+	 *
+	 * @param	threadState	the thread to move.
+	 */
+	void reposition(ThreadState threadState) {
+	    Lib.assertTrue(threadState.waitingOn == this);
+
+	    checkBoost();
+
+	    levels.get(threadState.queueLevel).remove(threadState);
+	    insert(threadState);
+	}
+
+	/**
+	 * Add a thread to the list for its effective level, after every thread
+	 * that started waiting before it.
+	 */
+	private void insert(ThreadState threadState) {
+	    threadState.queueLevel = threadState.getEffectiveLevel();
+	    LinkedList<ThreadState> level = levels.get(threadState.queueLevel);
+
+	    ListIterator<ThreadState> it = level.listIterator(level.size());
+	    while (it.hasPrevious()) {
+		if (it.previous().sequence < threadState.sequence) {
+		    it.next();
+		    break;
+		}
+	    }
+	    it.add(threadState);
+	}
+
+	/**
+	 * If there has been a boost since this queue last looked, move every
+	 * waiting thread to level 0, in the order they started waiting.
+	 */
+	private void checkBoost() {
+	    if (epoch == boostEpoch)
+		return;
+
+	    epoch = boostEpoch;
+
+	    ArrayList<ThreadState> waiting = new ArrayList<ThreadState>();
+	    for (int i=1; i<levels.size(); i++) {
+		waiting.addAll(levels.get(i));
+		levels.get(i).clear();
+	    }
+	    if (waiting.isEmpty())
+		return;
+
+	    waiting.addAll(levels.get(0));
+	    levels.get(0).clear();
+
+	    Collections.sort(waiting, new Comparator<ThreadState>() {
+		    public int compare(ThreadState a, ThreadState b) {
+			return Long.compare(a.sequence, b.sequence);
+		    }
+		});
+
+	    for (ThreadState threadState : waiting)
+		threadState.queueLevel = 0;
+	    levels.get(0).addAll(waiting);
+	}
+
+	/** <tt>true</tt> if the holder runs on the level of its waiters. */
+	private boolean transferPriority;
+	/** The thread that last got access, if this queue transfers priority. */
+	private ThreadState holder = null;
+	private ArrayList<LinkedList<ThreadState>> levels;
+	private int numWaiting = 0;
+	private long numAdded = 0;
+	private int epoch = boostEpoch;
+    }
+
+    /**
+     * The scheduling state of a thread: its level, how much of the quantum of
+     * that level it has used, and the level it runs on once donations are
+     * counted.
+     *
+     * @see	nachos.threads.KThread#schedulingState
+     */
+    protected class ThreadState {
+	/**
+	 * Allocate a new <tt>ThreadState</tt> object and associate it with the
+	 * specified thread. The thread starts on level 0.
+	 *
+	 * @param	thread	the thread this state belongs to.
+	 */
+	public ThreadState(KThread thread) {
+	    this.thread = thread;
+	}
+
+	/**
+	 * Return the level of the associated thread, moving it to level 0 if
+	 * there has been a boost since it was last looked at.
+	 *
+	 * @return	the level of the associated thread.
+	 */
+	public int getLevel() {
+	    if (epoch != boostEpoch) {
+		epoch = boostEpoch;
+		level = 0;
+		effectiveLevel = 0;
+		used = 0;
+	    }
+
+	    return level;
+	}
+
+	/**
+	 * Return the effective level of the associated thread: the highest of
+	 * its own level and the levels donated to it.
+	 *
+	 * @return	the effective level of the associated thread.
+	 */
+	public int getEffectiveLevel() {
+	    getLevel();
+	    return effectiveLevel;
+	}
+
+	/**
+	 * Recompute the effective level of the associated thread. A change is
+	 * passed on to the queue this thread waits on and, if that queue
+	 * transfers priority, to its holder, and so on along the chain of
+	 * holders, stopping at the first thread whose effective level does not
+	 * change.
+	 */
+	void updateEffectiveLevel() {
+	    ThreadState state = this;
+	    while (state != null) {
+		int newLevel = state.getLevel();
+		for (MLFQQueue queue : state.heldQueues)
+		    newLevel = Math.min(newLevel, queue.highestLevel());
+
+		if (newLevel == state.effectiveLevel)
+		    return;
+		state.effectiveLevel = newLevel;
+
+		MLFQQueue queue = state.waitingOn;
+		if (queue == null)
+		    return;
+		queue.reposition(state);
+		state = queue.transferPriority ? queue.holder : null;
+	    }
+	}
+
+	/**
+	 * Called when the ready queue chooses the associated thread to run.
+	 */
+	void start() {
+	    startTime = Machine.timer().getTime();
+	    ran = true;
+	}
+
+	/**
+	 * Charge the associated thread for the ticks it has run since it was
+	 * last charged, and move it down a level if that uses up its quantum.
+	 *
+	 * @return	<tt>true</tt> if the quantum was used up.
+	 */
+	boolean charge() {
+	    long now = Machine.timer().getTime();
+	    int level = getLevel();
+
+	    used += now - startTime;
+	    startTime = now;
+	    ran = true;
+
+	    if (used + timerJitter < quanta[level])
+		return false;
+
+	    if (level < quanta.length-1) {
+		this.level++;
+		updateEffectiveLevel();
+	    }
+	    used = 0;
+	    return true;
+	}
+
+	/**
+	 * Called when the associated thread is woken up after blocking. It
+	 * moves up a level, and if that is above the current thread, the
+	 * current thread will yield at the next timer interrupt.
+	 */
+	void wake() {
+	    if (getLevel() > 0) {
+		level--;
+		used = 0;
+		updateEffectiveLevel();
+	    }
+
+	    if (effectiveLevel < wokenLevel)
+		wokenLevel = effectiveLevel;
+	}
+
+	/** The thread with which this object is associated. */
+	protected KThread thread;
+
+	private int level = 0;
+	/** The level this thread runs on, counting donations. */
+	private int effectiveLevel = 0;
+	/** The ticks of this level's quantum used so far. */
+	private long used = 0;
+	/** The time the thread was last charged or started running. */
+	private long startTime = 0;
+	private int epoch = boostEpoch;
+	/** <tt>true</tt> once the thread has run, so a wake-up follows a block. */
+	private boolean ran = false;
+	/** The order in which this thread started waiting. */
+	long sequence;
+	/** The queue this thread is waiting on, if any. */
+	MLFQQueue waitingOn = null;
+	/** The list of <tt>waitingOn</tt> this thread is in. */
+	int queueLevel;
+	/** The queues that transfer priority and that this thread holds. */
+	LinkedList<MLFQQueue> heldQueues = new LinkedList<MLFQQueue>();
+    }
+
+    /**
+     * The most ticks early a timer interrupt can come, so that a quantum is
+     * not missed by one interrupt. See <tt>Timer.scheduleInterrupt()</tt>.
+     */
+    private static final long timerJitter = Stats.TimerTicks/20;
+
+    /** The quantum of each level, in clock ticks. */
+    private long[] quanta;
+
+    private long boostInterval;
+    private long nextBoost;
+    /** The number of boosts so far. */
+    private int boostEpoch = 0;
+
+    /** The highest level woken up since the last timer interrupt. */
+    private int wokenLevel = Integer.MAX_VALUE;
+}
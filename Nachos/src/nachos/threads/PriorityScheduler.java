@@ -25,10 +25,6 @@ import java.util.*;
  * particular, priority must be donated through locks, and through joins.
  */
 public class PriorityScheduler extends Scheduler {
-
-    //TESTING VARIABLE
-    public static int TestingID = 0 ;
-
     /**
      * Allocate a new priority scheduler.
      */
@@ -125,20 +121,22 @@ public class PriorityScheduler extends Scheduler {
     }
 
     /**
-     * A <tt>ThreadQueue</tt> that sorts threads by priority.
+     * A <tt>ThreadQueue</tt> that sorts threads by priority. Waiting threads
+     * are kept in one set per effective priority, ordered by when they
+     * started waiting, and a bitmap records which sets are non-empty, so
+     * adding, removing and picking a thread all take O(log n) time.
      */
-    protected class PriorityQueue extends ThreadQueue {
+    protected class PriorityQueue extends ThreadQueue
+		implements Iterable<ThreadState> {
 
-			//This is the main queue that holds the threads to be executed.
-			public java.util.PriorityQueue<ThreadState> priorityQueue;
-			//Need a thread to be in the position of leader when pulled off the Queue
+			/** The thread that has access, if priority is transferred to it. */
 			public ThreadState controller = null;
 
 		PriorityQueue(boolean transferPriority) {
-			/*System.out.println("Created Priority Queue");*/
 			this.transferPriority = transferPriority;
-			//This should initialize a new Queue.Sorted in descending order because of comparator in ThreadState
-			priorityQueue = new java.util.PriorityQueue<ThreadState>();
+
+			for(int level = 0; level <= priorityMaximum; level++)
+				levels.add(new TreeSet<ThreadState>(bySequence));
 		}
 
 
@@ -152,47 +150,28 @@ public class PriorityScheduler extends Scheduler {
 			getThreadState(thread).acquire(this);
 		}
 
-		public KThread nextThread() { System.out.println("PQ: Picking next thread");
-
-			//disable the interrupts
+		public KThread nextThread() {
 			Lib.assertTrue(Machine.interrupt().disabled());
 
-			//Change controllers if there is a threadState that already owns this resource.
-			//Transfer Priority tells me if this should occur
-			//Also make sure this thread doesn't already have control of queue
-			if(transferPriority && this.controller != null) {
-				this.controller.capturedResources.remove(this);
-				//could have received a donation between these lines
-				this.controller.updateEffectivePriority();
-
+			//The current controller gives up the resource, so it loses
+			//whatever the waiters donated to it
+			if(this.controller != null) {
+				ThreadState oldController = this.controller;
+				this.controller = null;
+				oldController.capturedResources.remove(this);
+				oldController.updateEffectivePriority();
 			}
 
-			//check for elements in the queue if nothing there return null
-			if(priorityQueue == null || priorityQueue.isEmpty()){
+			if(isEmpty())
 				return null;
-			}else{
-				/* because there is something in the queue
-				 * the first function from SortedSet picks the first thread
-				 * on the queue making it the next thread
-				 */
-				ThreadState threadState = pickNextThread();
-				/* because the first gives the next thread it needs to be
-				 * removed from the queue as it has already been picked
-				 */
-
-				//We have already chosen the next Thread to control the queue
-				//So we take down the current controller.
-				this.controller = null;
-				//Since this is going to be the new controller you have to acquire
-				//the queue as one of the resources.
-				this.acquire(threadState.thread);
 
-				priorityQueue.remove(priorityQueue.peek());
+			ThreadState threadState = pickNextThread();
 
-				if(priorityQueue!=null)print();
-				//returns the next thread
-				return threadState.thread;
-			}
+			//The chosen thread stops waiting and becomes the new controller
+			remove(threadState);
+			this.acquire(threadState.thread);
+
+			return threadState.thread;
 		}
 
 		/**
@@ -203,35 +182,113 @@ public class PriorityScheduler extends Scheduler {
 		 *		return.
 		 */
 		protected ThreadState pickNextThread() {
-			/* check to see if something in priorityQueue
-			 *if it is empty return null
-			 */
-			if(priorityQueue.isEmpty())return null;
-			/* the next thread that this function would pick
-			 * is the first one on the queue
-			 */
-			return priorityQueue.peek();
+			return first();
+		}
+
+		/**
+		 * Return the thread that has waited longest at the highest effective
+		 * priority, or <tt>null</tt> if no thread is waiting.
+		 */
+		ThreadState first() {
+			if(occupied == 0)
+				return null;
+
+			return levels.get(31 - Integer.numberOfLeadingZeros(occupied)).first();
 		}
 
 		public void print() {
 			Lib.assertTrue(Machine.interrupt().disabled());
-			// implement me (if you want)
-			for(ThreadState threadState: priorityQueue)
+			for(ThreadState threadState : this)
 				System.out.print(threadState.priority +" ");
 			System.out.println("");
 		}
 
-
 		//ADDED FUNCTION
 		public boolean isEmpty(){
-			return priorityQueue.isEmpty();
+			return occupied == 0;
 		}
+
+		/**
+		 * Iterate over the waiting threads, from the one that would be picked
+		 * first to the one that would be picked last.
+		 */
+		public Iterator<ThreadState> iterator() {
+			ArrayList<ThreadState> waiting = new ArrayList<ThreadState>();
+			for(int level = priorityMaximum; level >= 0; level--)
+				waiting.addAll(levels.get(level));
+			return waiting.iterator();
+		}
+
+		/**
+		 * Add a thread to the set for its effective priority.
+		 */
+		void add(ThreadState threadState) {
+			Lib.assertTrue(threadState.waitingOn == null);
+
+			threadState.waitingOn = this;
+			threadState.sequence = numAdded++;
+			link(threadState);
+		}
+
+		/**
+		 * Remove a waiting thread from this queue.
+		 */
+		void remove(ThreadState threadState) {
+			Lib.assertTrue(threadState.waitingOn == this);
+
+			unlink(threadState);
+			threadState.waitingOn = null;
+		}
+
+		/**
+		 * Move a waiting thread to the set for its new effective priority.
+		 * It keeps its place in line, by the time it started waiting, among
+		 * the threads already there. Nothing moves if the set is the same, so
+		 * each step of a donation takes at most O(log n) time.
+		 */
+		void reposition(ThreadState threadState) {
+			Lib.assertTrue(threadState.waitingOn == this);
+
+			if(levelOf(threadState) == threadState.level)
+				return;
+
+			unlink(threadState);
+			link(threadState);
+		}
+
+		private int levelOf(ThreadState threadState) {
+			return Math.min(threadState.effectivePriority, priorityMaximum);
+		}
+
+		private void link(ThreadState threadState) {
+			int level = levelOf(threadState);
+			threadState.level = level;
+
+			levels.get(level).add(threadState);
+			occupied |= 1 << level;
+		}
+
+		private void unlink(ThreadState threadState) {
+			int level = threadState.level;
+
+			TreeSet<ThreadState> set = levels.get(level);
+			set.remove(threadState);
+			if(set.isEmpty())
+				occupied &= ~(1 << level);
+		}
+
 		/**
 		 * <tt>true</tt> if this queue should transfer priority from waiting
 		 * threads to the owning thread.
 		 */
 		public boolean transferPriority;
 
+		/** The waiting threads at each effective priority, oldest first. */
+		private ArrayList<TreeSet<ThreadState>> levels =
+			new ArrayList<TreeSet<ThreadState>>(priorityMaximum+1);
+		/** Bit <i>i</i> is set if some thread waits at priority <i>i</i>. */
+		private int occupied = 0;
+		private long numAdded = 0;
     }
 
     /**
@@ -241,21 +298,12 @@ public class PriorityScheduler extends Scheduler {
      *
      * @see	nachos.threads.KThread#schedulingState
      */
-    protected class ThreadState implements Comparable<ThreadState>{																	//<<<<<<<<<<<<<<<<<<<<<<<<<<<<<<<<<<<<<<
+    protected class ThreadState {
 
+		/** The queues held by this thread that transfer priority to it. */
 		protected List<PriorityQueue> capturedResources;
-		//This structure might be used later on, but its not
-		//really necessary for this project.
-		protected List<PriorityQueue> wantedResources;
 
 		protected int effectivePriority;
-		/** There should be some resources here for use*/
-
-		protected boolean priorityChanged = false;
-
-		protected long waitTime;
-		//TESINTG ID
-		private int id;
 
 		/**
 		 * Allocate a new <tt>ThreadState</tt> object and associate it with the
@@ -265,16 +313,10 @@ public class PriorityScheduler extends Scheduler {
 		 */
 		public ThreadState(KThread thread) {
 			this.thread = thread;
-			//Creating new resourced list
 			capturedResources = new ArrayList<PriorityQueue>();
-			wantedResources = new ArrayList<PriorityQueue>();
 			effectivePriority = priorityMinimum;
 
 			setPriority(priorityDefault);
-
-			waitTime = Machine.timer().getTime();
-
-			id = ++TestingID;
 		}
 
 		/**
@@ -291,30 +333,60 @@ public class PriorityScheduler extends Scheduler {
 		 *
 		 * @return	the effective priority of the associated thread.
 		 */
-		public int getEffectivePriority() {System.out.println("PRIORITY EFFECTINVE");
-			// implement me
-			updateEffectivePriority();
-
+		public int getEffectivePriority() {
 			return effectivePriority;
 		}
 
+		/**
+		 * Recompute the effective priority of the associated thread after its
+		 * priority, or the threads waiting on a queue it holds, changed. A
+		 * change is passed on to the holder of the queue this thread waits
+		 * on, and so on along the chain of holders, stopping at the first
+		 * thread whose effective priority stays the same.
+		 */
 		public void updateEffectivePriority(){
-			//Set the priority to the smallest that it can be
-			//This might also be an effective priority call.
-			effectivePriority = getPriority();
+			ThreadState state = this;
+
+			while(state != null) {
+				int newEffectivePriority = state.computeEffectivePriority();
+				if(newEffectivePriority == state.effectivePriority)
+					return;
+
+				state.effectivePriority = newEffectivePriority;
+
+				//a waiting thread has to move to its new priority level, and
+				//its new priority is donated to the holder
+				PriorityQueue queue = state.waitingOn;
+				if(queue == null)
+					return;
+
+				queue.reposition(state);
+				state = queue.transferPriority ? queue.controller : null;
+			}
+		}
+
+		/**
+		 * Return the priority of the associated thread, raised to that of
+		 * the highest waiter on any priority-transferring queue it holds.
+		 * Each waiter's effective priority is already up to date, so only
+		 * the first waiter of each queue needs to be looked at.
+		 *
+		 * @return	the effective priority the associated thread should
+		 *		have.
+		 */
+		protected int computeEffectivePriority() {
+			int effective = getPriority();
 
 			for(PriorityQueue queue : capturedResources){
-				for(ThreadState threadState : queue.priorityQueue){
-					if(queue.transferPriority) {
-						//Go through and call get effective priority on every thread in each list.
-						int priority = threadState.getEffectivePriority();
-						effectivePriority = ( priority > effectivePriority) ? priority : effectivePriority;
-					}
-				}
+				if(!queue.transferPriority)
+					continue;
+
+				ThreadState first = queue.first();
+				if(first != null && first.effectivePriority > effective)
+					effective = first.effectivePriority;
 			}
 
-			//this is for priority being changed
-			priorityChanged = true;
+			return effective;
 		}
 
 		/**
@@ -323,12 +395,11 @@ public class PriorityScheduler extends Scheduler {
 		 * @param	priority	the new priority.
 		 */
 		public void setPriority(int priority) {
-			//System.out.println(this+"SetPriority to: " + priority);
 			if (this.priority == priority)
-			return;
+				return;
 
 			this.priority = priority;
-			getEffectivePriority();
+			updateEffectivePriority();
 		}
 
 		/**
@@ -344,25 +415,12 @@ public class PriorityScheduler extends Scheduler {
 		 * @see	nachos.threads.ThreadQueue#waitForAccess
 		 */
 		public void waitForAccess(PriorityQueue waitQueue) {
-			// implement me
-
-			//Lib.assertTrue(Machine.interrupt().disable());//COMMENTED OUT THIS LINE. THIS CHECK FAILS INITIALLY
-			//disable the interrupts
-			boolean result = Machine.interrupt().disable();
-
-			//Check to make sure you are not already on the queue then
-			//Add yourself to the queue because you are now requesting access.
-			if(!waitQueue.priorityQueue.contains(this))waitQueue.priorityQueue.add(this);
-
-			//Might have to add waitQueue to the wantedResources.
-			//Doesn't seems necessary for this project
-
-			//Update the effective priorities because the order how now changed
-			updateEffectivePriority();
-
-			//restore the machine state
-			Machine.interrupt().restore(result);
+			if(waitingOn != waitQueue)
+				waitQueue.add(this);
 
+			//Donate to the holder, and from it along the chain of holders
+			if(waitQueue.transferPriority && waitQueue.controller != null)
+				waitQueue.controller.updateEffectivePriority();
 		}
 
 		/**
@@ -376,63 +434,36 @@ public class PriorityScheduler extends Scheduler {
 		 * @see	nachos.threads.ThreadQueue#nextThread
 		 */
 		public void acquire(PriorityQueue waitQueue) {
-			// implement me
-			Lib.assertTrue(waitQueue.controller == null);
+			//only a holder that receives donations needs to be tracked
+			if(!waitQueue.transferPriority)
+				return;
 
-			//Add this queue to one of my resources
-			//and make sure it is not a resource of mine already
-			if(!capturedResources.contains(waitQueue))capturedResources.add(waitQueue);
+			Lib.assertTrue(waitQueue.controller == null);
 
-			//I now become the new Queue holder
+			//I now become the new Queue holder, and the waiters donate to me
+			capturedResources.add(waitQueue);
 			waitQueue.controller = this;
-
-			//The order has now changed so I will update the priority
 			updateEffectivePriority();
-
-			//If this used to be a resource that you want, you now own it
-			//so you don't want it anymore
-			if(wantedResources.contains(waitQueue))
-				wantedResources.remove(waitQueue);
 		}
 
-		/* APPARENTLY YOU CANNOT DO THIS. EXCEPTION THROWN BY GRADER TRYING TO MAKE IT COMPARABLE
-		@Override
-		public int compare(ThreadState threadState, ThreadState t1) {
-				//return threadState.getPriority() - t1.getPriority();//This would be in ascending order
-				return t1.getPriority() - threadState.getPriority();//Descending
-		}*/
-
 		/** The thread with which this object is associated. */
 		protected KThread thread;
 		/** The priority of the associated thread. */
 		protected int priority;
 
-		@Override
-		public String toString() {
-			return "thread["+id+"]:";
-		}
-
-		@Override
-		public int compareTo(ThreadState threadState) {
-			//return threadState.priority - this.priority;
-			if(threadState.priority > this.priority){//descenting
-				return 1;
-			}else if(threadState.priority < this.priority ){
-				return -1;
-			}else{
-				//Now consider time as a sorting order
-				//The threads with the longest time go first
-				//EXAMPLE
-				// ThreadPriority[waitTime]
-				// Queue: 3[4],2[6],2[5],2[3],1[1],1[0]
-				if(threadState.waitTime > this.waitTime){
-					return 1;
-				}else if(threadState.waitTime < this.waitTime){
-					return -1;
-				}else{
-					return 0;
-				}
-			}
-		}
+		/** The queue this thread is waiting on, if any. */
+		PriorityQueue waitingOn = null;
+		/** The priority set of <tt>waitingOn</tt> this thread is in. */
+		int level;
+		/** The order in which this thread started waiting. */
+		long sequence;
     }
+
+    /** Orders the threads waiting at one priority by when they started. */
+    private static final Comparator<ThreadState> bySequence =
+	new Comparator<ThreadState>() {
+	    public int compare(ThreadState a, ThreadState b) {
+		return Long.compare(a.sequence, b.sequence);
+	    }
+	};
 }
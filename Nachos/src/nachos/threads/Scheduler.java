@@ -154,4 +154,15 @@ public abstract class Scheduler {
     public boolean decreasePriority() {
 	return false;
     }
+
+    /**
+     * Called by the alarm at every timer interrupt, with interrupts disabled,
+     * to decide whether the current thread should yield. By default, every
+     * timer interrupt ends the current thread's time slice.
+     *
+     * @return	<tt>true</tt> if the current thread should yield.
+     */
+    public boolean timerInterrupt() {
+	return true;
+    }
 }
@@ -0,0 +1,492 @@
+package nachos.threads;
+
+import nachos.machine.*;
+
+import java.util.ArrayList;
+
+/**
+ * A scheduler that gives each thread a share of access proportional to its
+ * tickets, without relying on chance.
+ *
+ * <p>
+ * Each thread has a <i>stride</i>, inversely proportional to its tickets, and
+ * a <i>pass</i>. Each time the ready queue chooses a thread to run, its pass
+ * advances by its stride, and a queue always gives access to the waiting
+ * thread with the lowest pass. A thread with twice the tickets of another
+ * therefore receives access exactly twice as often, give or take one choice,
+ * whereas a lottery scheduler only achieves this on average. Waiting threads
+ * are kept in a binary heap ordered by pass, so each choice takes O(log n)
+ * time. Threads with the same pass receive access in the order they started
+ * waiting.
+ *
+ * <p>
+ * Only turns on the processor are charged. Waiting on a lock, a semaphore or
+ * a join does not advance a thread's pass, and such queues simply order their
+ * waiters by the pass they already have.
+ *
+ * <p>
+ * The ready queue remembers the pass of the last thread it chose. A thread
+ * whose pass has fallen behind it, for example a new thread or one that slept
+ * for a long time, waits one stride from the queue's pass instead of its own,
+ * so it cannot monopolize the processor.
+ *
+ * <p>
+ * Like a lottery scheduler, a stride scheduler transfers tickets through
+ * locks and joins, and the tickets add. When the tickets of a thread on the
+ * ready queue change, the part of its stride it still has to wait out is
+ * scaled to its new stride.
+ */
+public class StrideScheduler extends Scheduler {
+    /**
+     * Allocate a new stride scheduler.
+     */
+    public StrideScheduler() {
+    }
+
+    /**
+     * Allocate a new stride thread queue.
+     *
+     * @param	transferPriority	<tt>true</tt> if this queue should
+     *					transfer tickets from waiting threads
+     *					to the owning thread.
+     * @return	a new stride thread queue.
+     */
+    public ThreadQueue newThreadQueue(boolean transferPriority) {
+	return new StrideQueue(transferPriority);
+    }
+
+    public int getPriority(KThread thread) {
+	Lib.assertTrue(Machine.interrupt().disabled());
+
+	return getThreadState(thread).getPriority();
+    }
+
+    public int getEffectivePriority(KThread thread) {
+	Lib.assertTrue(Machine.interrupt().disabled());
+
+	return getThreadState(thread).getEffectivePriority();
+    }
+
+    public void setPriority(KThread thread, int priority) {
+	Lib.assertTrue(Machine.interrupt().disabled());
+
+	Lib.assertTrue(priority >= priorityMinimum &&
+		       priority <= priorityMaximum);
+
+	getThreadState(thread).setPriority(priority);
+    }
+
+    public boolean increasePriority() {
+	boolean intStatus = Machine.interrupt().disable();
+
+	KThread thread = KThread.currentThread();
+
+	int priority = getPriority(thread);
+	boolean changed = (priority != priorityMaximum);
+	if (changed)
+	    setPriority(thread, priority+1);
+
+	Machine.interrupt().restore(intStatus);
+	return changed;
+    }
+
+    public boolean decreasePriority() {
+	boolean intStatus = Machine.interrupt().disable();
+
+	KThread thread = KThread.currentThread();
+
+	int priority = getPriority(thread);
+	boolean changed = (priority != priorityMinimum);
+	if (changed)
+	    setPriority(thread, priority-1);
+
+	Machine.interrupt().restore(intStatus);
+	return changed;
+    }
+
+    /**
+     * The default number of tickets for a new thread.
+     */
+    public static final int priorityDefault = 1;
+    /**
+     * The minimum number of tickets that a thread can have.
+     */
+    public static final int priorityMinimum = 1;
+    /**
+     * The maximum number of tickets that a thread can have.
+     */
+    public static final int priorityMaximum = Integer.MAX_VALUE;
+
+    /**
+     * The stride of a thread with one ticket. Strides are rounded down, so
+     * this is large enough to keep the ratios of strides accurate for any
+     * reasonable number of tickets, and small enough that passes do not
+     * overflow.
+     */
+    private static final long stride1 = 1L << 32;
+
+    /**
+     * Return the scheduling state of the specified thread.
+     *
+     * @param	thread	the thread whose scheduling state to return.
+     * @return	the scheduling state of the specified thread.
+     */
+    protected ThreadState getThreadState(KThread thread) {
+	if (thread.schedulingState == null)
+	    thread.schedulingState = new ThreadState(thread);
+
+	return (ThreadState) thread.schedulingState;
+    }
+
+    /**
+     * A <tt>ThreadQueue</tt> that gives access to the waiting thread with the
+     * lowest pass.
+     */
+    protected class StrideQueue extends ThreadQueue {
+	StrideQueue(boolean transferPriority) {
+	    this.transferPriority = transferPriority;
+	}
+
+	public void waitForAccess(KThread thread) {
+	    Lib.assertTrue(Machine.interrupt().disabled());
+
+	    getThreadState(thread).waitForAccess(this);
+	}
+
+	public void acquire(KThread thread) {
+	    Lib.assertTrue(Machine.interrupt().disabled());
+
+	    getThreadState(thread).acquire(this);
+	}
+
+	public KThread nextThread() {
+	    Lib.assertTrue(Machine.interrupt().disabled());
+
+	    if (holder != null) {
+		ThreadState oldHolder = holder;
+		holder = null;
+		oldHolder.release(this);
+	    }
+
+	    ThreadState threadState = pickNextThread();
+	    if (threadState == null)
+		return null;
+
+	    remove(threadState);
+
+	    // only a turn on the processor is charged
+	    if (threadState.thread.isReady()) {
+		currentPass = threadState.pass;
+		threadState.pass += threadState.stride;
+	    }
+
+	    threadState.acquire(this);
+	    return threadState.thread;
+	}
+
+	/**
+	 * Return the next thread that <tt>nextThread()</tt> would return,
+	 * without modifying the state of this queue.
+	 *
+	 * @return	the next thread that <tt>nextThread()</tt> would
+	 *		return.
+	 */
+	protected ThreadState pickNextThread() {
+	    if (numWaiting == 0)
+		return null;
+
+	    return heap[0];
+	}
+
+	public void print() {
+	    Lib.assertTrue(Machine.interrupt().disabled());
+
+	    for (int i=0; i<numWaiting; i++)
+		System.out.print(heap[i].thread + " ");
+	    System.out.println();
+	}
+
+	/**
+	 * Return the total number of tickets held by waiting threads.
+	 *
+	 * @return	the sum of the waiters' effective tickets.
+	 */
+	public long totalTickets() {
+	    return totalTickets;
+	}
+
+	void add(ThreadState threadState) {
+	    Lib.assertTrue(threadState.waitingOn == null);
+
+	    if (numWaiting == heap.length) {
+		ThreadState[] newHeap = new ThreadState[heap.length*2];
+		System.arraycopy(heap, 0, newHeap, 0, numWaiting);
+		heap = newHeap;
+	    }
+
+	    threadState.waitingOn = this;
+	    threadState.sequence = numAdded++;
+	    totalTickets += threadState.tickets;
+
+	    place(threadState, numWaiting++);
+	    siftUp(threadState.heapIndex);
+	}
+
+	void remove(ThreadState threadState) {
+	    Lib.assertTrue(threadState.waitingOn == this);
+
+	    int i = threadState.heapIndex;
+	    ThreadState last = heap[--numWaiting];
+	    heap[numWaiting] = null;
+
+	    if (i != numWaiting) {
+		place(last, i);
+		siftUp(i);
+		siftDown(last.heapIndex);
+	    }
+
+	    threadState.waitingOn = null;
+	    totalTickets -= threadState.tickets;
+	}
+
+	/**
+	 * Move a waiting thread to its place for its new pass, after its
+	 * tickets changed from <i>oldTickets</i>.
+	 */
+	void reposition(ThreadState threadState, long oldTickets) {
+	    Lib.assertTrue(threadState.waitingOn == this);
+
+	    totalTickets += threadState.tickets - oldTickets;
+
+	    siftUp(threadState.heapIndex);
+	    siftDown(threadState.heapIndex);
+	}
+
+	private boolean before(ThreadState a, ThreadState b) {
+	    if (a.pass != b.pass)
+		return a.pass < b.pass;
+	    else
+		return a.sequence < b.sequence;
+	}
+
+	private void place(ThreadState threadState, int i) {
+	    heap[i] = threadState;
+	    threadState.heapIndex = i;
+	}
+
+	private void siftUp(int i) {
+	    ThreadState threadState = heap[i];
+
+	    while (i > 0) {
+		int parent = (i-1) / 2;
+		if (!before(threadState, heap[parent]))
+		    break;
+
+		place(heap[parent], i);
+		i = parent;
+	    }
+
+	    place(threadState, i);
+	}
+
+	private void siftDown(int i) {
+	    ThreadState threadState = heap[i];
+
+	    while (true) {
+		int child = 2*i + 1;
+		if (child >= numWaiting)
+		    break;
+		if (child+1 < numWaiting && before(heap[child+1], heap[child]))
+		    child++;
+		if (!before(heap[child], threadState))
+		    break;
+
+		place(heap[child], i);
+		i = child;
+	    }
+
+	    place(threadState, i);
+	}
+
+	/**
+	 * <tt>true</tt> if this queue should transfer tickets from waiting
+	 * threads to the owning thread.
+	 */
+	public boolean transferPriority;
+
+	/** The thread that has access, if tickets are transferred to it. */
+	private ThreadState holder = null;
+
+	private ThreadState[] heap = new ThreadState[4];
+	private int numWaiting = 0;
+	private long numAdded = 0;
+	private long totalTickets = 0;
+	/** The pass of the thread the ready queue chose last. */
+	private long currentPass = 0;
+    }
+
+    /**
+     * The scheduling state of a thread: its tickets, its stride and pass, the
+     * queues it holds that transfer tickets, and the queue it is waiting on,
+     * if any.
+     *
+     * @see	nachos.threads.KThread#schedulingState
+     */
+    protected class ThreadState {
+	/**
+	 * Allocate a new <tt>ThreadState</tt> object and associate it with the
+	 * specified thread.
+	 *
+	 * @param	thread	the thread this state belongs to.
+	 */
+	public ThreadState(KThread thread) {
+	    this.thread = thread;
+
+	    priority = priorityDefault;
+	    tickets = priorityDefault;
+	    stride = stride1 / priorityDefault;
+	}
+
+	/**
+	 * Return the tickets of the associated thread.
+	 *
+	 * @return	the tickets of the associated thread.
+	 */
+	public int getPriority() {
+	    return priority;
+	}
+
+	/**
+	 * Return the effective tickets of the associated thread, limited to
+	 * <tt>priorityMaximum</tt>.
+	 *
+	 * @return	the effective tickets of the associated thread.
+	 */
+	public int getEffectivePriority() {
+	    return (int) Math.min(tickets, priorityMaximum);
+	}
+
+	/**
+	 * Set the tickets of the associated thread to the specified value.
+	 *
+	 * @param	priority	the new number of tickets.
+	 */
+	public void setPriority(int priority) {
+	    if (this.priority == priority)
+		return;
+
+	    this.priority = priority;
+	    updateTickets();
+	}
+
+	/**
+	 * Called when <tt>waitForAccess(thread)</tt> (where <tt>thread</tt> is
+	 * the associated thread) is invoked on the specified queue.
+	 *
+	 * @param	waitQueue	the queue that the associated thread is
+	 *				now waiting on.
+	 *
+	 * @see	nachos.threads.ThreadQueue#waitForAccess
+	 */
+	public void waitForAccess(StrideQueue waitQueue) {
+	    if (thread.isReady())
+		pass = Math.max(pass, waitQueue.currentPass + stride);
+
+	    waitQueue.add(this);
+
+	    if (waitQueue.transferPriority && waitQueue.holder != null)
+		waitQueue.holder.updateTickets();
+	}
+
+	/**
+	 * Called when the associated thread has acquired access to whatever is
+	 * guarded by <tt>waitQueue</tt>.
+	 *
+	 * @see	nachos.threads.ThreadQueue#acquire
+	 * @see	nachos.threads.ThreadQueue#nextThread
+	 */
+	public void acquire(StrideQueue waitQueue) {
+	    if (!waitQueue.transferPriority)
+		return;
+
+	    Lib.assertTrue(waitQueue.holder == null);
+
+	    waitQueue.holder = this;
+	    heldQueues.add(waitQueue);
+	    updateTickets();
+	}
+
+	/**
+	 * Called when the associated thread has given up access to whatever
+	 * is guarded by <tt>waitQueue</tt>.
+	 */
+	void release(StrideQueue waitQueue) {
+	    heldQueues.remove(waitQueue);
+	    updateTickets();
+	}
+
+	/**
+	 * Recompute the effective tickets of the associated thread, and pass
+	 * a change on along the chain of queue holders, stopping at the first
+	 * thread whose effective tickets stay the same.
+	 */
+	void updateTickets() {
+	    ThreadState state = this;
+
+	    while (state != null) {
+		long newTickets = state.computeTickets();
+		if (newTickets == state.tickets)
+		    return;
+
+		long oldTickets = state.tickets;
+		long oldStride = state.stride;
+		state.tickets = newTickets;
+		state.stride = Math.max(stride1 / newTickets, 1);
+
+		StrideQueue queue = state.waitingOn;
+		if (queue == null)
+		    return;
+
+		// keep the same fraction of a stride left to wait for a turn
+		if (state.thread.isReady()) {
+		    long remaining = state.pass - queue.currentPass;
+		    state.pass = queue.currentPass +
+			(long) ((double) remaining * state.stride / oldStride);
+		}
+
+		queue.reposition(state, oldTickets);
+		state = queue.transferPriority ? queue.holder : null;
+	    }
+	}
+
+	private long computeTickets() {
+	    long tickets = priority;
+
+	    for (StrideQueue queue : heldQueues)
+		tickets += queue.totalTickets();
+
+	    return tickets;
+	}
+
+	/** The thread with which this object is associated. */
+	protected KThread thread;
+	/** The tickets of the associated thread. */
+	protected int priority;
+	/** The tickets of the associated thread, plus those donated to it. */
+	protected long tickets;
+	/** The amount the pass advances by each time the thread runs. */
+	protected long stride;
+	/** The virtual time at which the thread should be chosen. */
+	protected long pass = 0;
+
+	/** The queues held by this thread that transfer tickets to it. */
+	private ArrayList<StrideQueue> heldQueues = new ArrayList<StrideQueue>();
+
+	/** The queue this thread is waiting on, if any. */
+	StrideQueue waitingOn = null;
+	/** The position of this thread in the heap of <tt>waitingOn</tt>. */
+	int heapIndex;
+	/** The order in which this thread started waiting. */
+	long sequence;
+    }
+}
@@ -0,0 +1,115 @@
+package nachos.threads;
+
+import nachos.machine.*;
+
+import java.util.Arrays;
+
+/**
+ * Measures how long context switches take on the host. A number of threads
+ * take turns, first by calling <tt>KThread.yield()</tt>, and then by passing
+ * a token around a ring of semaphores. For each, the benchmark prints the
+ * number of switches per second of host time, and percentiles of the host
+ * time from one thread giving up the CPU to the next one running.
+ *
+ * <p>
+ * <tt>ThreadedKernel.selfTest()</tt> runs the benchmark if
+ * <tt>SwitchBenchmark.switches</tt> is set, with
+ * <tt>SwitchBenchmark.threads</tt> threads (2 by default).
+ */
+public class SwitchBenchmark {
+    /**
+     * Run both passes of the benchmark, each until <i>numSwitches</i>
+     * switches have been made.
+     *
+     * @param	numThreads	the number of threads taking turns.
+     * @param	numSwitches	the number of switches to time.
+     */
+    public static void benchmark(int numThreads, int numSwitches) {
+	Lib.assertTrue(numThreads > 0 && numSwitches > 0);
+
+	new SwitchBenchmark(numThreads, numSwitches, false).run();
+	new SwitchBenchmark(numThreads, numSwitches, true).run();
+    }
+
+    private SwitchBenchmark(int numThreads, int numSwitches,
+			    boolean semaphores) {
+	this.numThreads = numThreads;
+	this.semaphores = semaphores;
+	latencies = new long[numSwitches];
+    }
+
+    private void run() {
+	turns = new Semaphore[numThreads];
+	for (int i=0; i<numThreads; i++)
+	    turns[i] = new Semaphore(0);
+
+	long start = System.nanoTime();
+
+	for (int i=0; i<numThreads; i++) {
+	    final int which = i;
+	    new KThread(new Runnable() {
+		    public void run() { loop(which); }
+		}).setName("benchmark " + i).fork();
+	}
+
+	if (semaphores)
+	    turns[0].V();
+
+	for (int i=0; i<numThreads; i++)
+	    finished.P();
+
+	long elapsed = System.nanoTime() - start;
+
+	Arrays.sort(latencies);
+	System.out.println("Context switches with "
+			   + (semaphores ? "Semaphore" : "yield()") + ": "
+			   + numThreads + " threads, " + latencies.length
+			   + " switches in " + elapsed/1000000 + " ms, "
+			   + (long) (latencies.length * 1e9 / elapsed)
+			   + " per second");
+	System.out.println("  latency p50 " + percentile(50)
+			   + ", p90 " + percentile(90)
+			   + ", p99 " + percentile(99)
+			   + ", max " + percentile(100));
+    }
+
+    private void loop(int which) {
+	while (true) {
+	    if (semaphores)
+		turns[which].P();
+
+	    // the first thread to run has no switch to time
+	    long now = System.nanoTime();
+	    if (lastSwitch != 0 && numTimed < latencies.length)
+		latencies[numTimed++] = now - lastSwitch;
+
+	    if (numTimed == latencies.length) {
+		// let the others see that we are done
+		if (semaphores)
+		    turns[(which+1) % numThreads].V();
+		finished.V();
+		return;
+	    }
+
+	    lastSwitch = System.nanoTime();
+	    if (semaphores)
+		turns[(which+1) % numThreads].V();
+	    else
+		KThread.yield();
+	}
+    }
+
+    private String percentile(int p) {
+	int i = Math.max(0, (latencies.length * p + 99) / 100 - 1);
+	long nanos = latencies[i];
+	return (nanos/1000) + "." + (nanos%1000/100) + " us";
+    }
+
+    private int numThreads;
+    private boolean semaphores;
+    private Semaphore[] turns;
+    private Semaphore finished = new Semaphore(0);
+    private long[] latencies;
+    private int numTimed = 0;
+    private long lastSwitch = 0;
+}
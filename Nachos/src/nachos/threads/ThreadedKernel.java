@@ -54,6 +54,12 @@ public class ThreadedKernel extends Kernel {
 	if (Machine.bank() != null) {
 	    ElevatorBank.selfTest();
 	}
+
+	int numSwitches = Config.getInteger("SwitchBenchmark.switches", 0);
+	if (numSwitches > 0) {
+	    int numThreads = Config.getInteger("SwitchBenchmark.threads", 2);
+	    SwitchBenchmark.benchmark(numThreads, numSwitches);
+	}
     }
     
     /**
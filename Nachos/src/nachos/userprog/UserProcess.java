@@ -91,7 +91,10 @@ public class UserProcess implements Comparable{
      * Save the state of this process in preparation for a context switch.
      * Called by <tt>UThread.saveState()</tt>.
      */
-    public void saveState() { }
+    public void saveState() {
+	if (profile != null)
+	    profile.collect(Machine.processor());
+    }
 
     /**
      * Restore the state of this process after a context switch. Called by
@@ -99,6 +102,9 @@ public class UserProcess implements Comparable{
      */
     public void restoreState() {
 	Machine.processor().setPageTable(pageTable);
+
+	if (profile != null)
+	    profile.start(Machine.processor());
     }
 
     /**
@@ -160,7 +166,7 @@ public class UserProcess implements Comparable{
 
 		Lib.assertTrue(offset >= 0 && length >= 0 && offset+length <= data.length);
 
-		byte[] memory = Machine.processor().getMemory();
+		Processor processor = Machine.processor();
 
 		int firstPage = Processor.pageFromAddress(vaddr); //Should be the first virtual page
 		int basePageOffset = Processor.offsetFromAddress(vaddr); //offset from the first page
@@ -173,14 +179,14 @@ public class UserProcess implements Comparable{
 		int amount = Math.min(length, pageSize - basePageOffset);
 		int desPos = Processor.makeAddress(entry.ppn,basePageOffset);
 
-		System.arraycopy(memory, desPos, data, offset, amount);
+		processor.readMemory(desPos, data, offset, amount);
 		offset += amount;
 
 		for(int i = firstPage + 1; i<= lastPage; i++){
 			entry = checkPageTable(i, false);
 			if (entry == null) return amount;
 			int len = Math.min(length - amount, pageSize);
-			System.arraycopy(memory, Processor.makeAddress(entry.ppn, 0), data, offset, len);
+			processor.readMemory(Processor.makeAddress(entry.ppn, 0), data, offset, len);
 			offset += len;
 			amount += len;
 		}
@@ -218,7 +224,7 @@ public class UserProcess implements Comparable{
 	public int writeVirtualMemory(int vaddr, byte[] data, int offset, int length) { //System.out.println("WRITEVMEM===========");
 		Lib.assertTrue(offset >= 0 && length >= 0 && offset+length <= data.length);
 
-		byte[] memory = Machine.processor().getMemory();
+		Processor processor = Machine.processor();
 		int firstPage = Processor.pageFromAddress(vaddr); //Should be the first virtual page
 		int basePageOffset = Processor.offsetFromAddress(vaddr); //offset from the first page
 		int lastPage = Processor.pageFromAddress(vaddr + length); //Should be last page because you have needed data
@@ -232,7 +238,7 @@ public class UserProcess implements Comparable{
 		int desPos = Processor.makeAddress(entry.ppn,basePageOffset);
 
 
-		System.arraycopy(data, offset, memory, desPos, amount);
+		processor.writeMemory(desPos, data, offset, amount);
 
 		//since we wrote we have to move the offset down the page for future writes
 		offset += amount;
@@ -241,7 +247,7 @@ public class UserProcess implements Comparable{
 			entry = checkPageTable(i, true);
 			if(entry == null) return amount;
 			int len = Math.min(length - amount, pageSize);
-			System.arraycopy(data, offset, memory, Processor.makeAddress(entry.ppn, 0), len);
+			processor.writeMemory(Processor.makeAddress(entry.ppn, 0), data, offset, len);
 			offset += len;
 			amount += len;
 		}
@@ -325,6 +331,9 @@ public class UserProcess implements Comparable{
 	// program counter initially points at the program entry point
 	initialPC = coff.getEntryPoint();	
 
+	if (Machine.processor().getPCSampleInterval() > 0)
+	    profile = new PCProfile(name, coff);
+
 	// next comes the stack; stack pointer initially points to top of it
 	numPages += stackPages;
 	initialSP = numPages*pageSize;
@@ -441,6 +450,8 @@ public class UserProcess implements Comparable{
 		return 0;
 	}
 
+	printProfile();
+
 	Machine.halt();
 	
 	Lib.assertNotReached("Machine.halt() did not halt machine!");
@@ -462,6 +473,8 @@ public class UserProcess implements Comparable{
 		System.out.println(" status: "+exitStatus);
 
 		this.unloadSections();
+
+		printProfile();
 		//Set all child parent processes to null
 		//childProcesses.forEach(x -> x.parentProcess=null);
 		//childProcesses.forEach((x,y) -> y.parentProcess=null);// >:(((((((( they wont let me do it
@@ -479,6 +492,16 @@ public class UserProcess implements Comparable{
 		return 0;
 	}
 
+	/**
+	 * Print this process's PC profile, if the processor is sampling.
+	 */
+	private void printProfile() {
+		if (profile != null) {
+			profile.collect(Machine.processor());
+			profile.print();
+		}
+	}
+
 	/**
 	 * Handle the exec() system call
 	 */
@@ -854,6 +877,9 @@ public class UserProcess implements Comparable{
     /** The program being run by this process. */
     protected Coff coff;
 
+    /** The PC profile of the program, or <tt>null</tt> if not sampling. */
+    protected PCProfile profile = null;
+
     /** This process's page table. */
     protected TranslationEntry[] pageTable;
     /** The number of contiguous pages occupied by the program. */